@@ -1,78 +1,120 @@
 package org.icatproject.utils;
 
-import java.math.BigInteger;
+import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Utility to check IP4 and IP6 addresses for acceptability.
+ * 
+ * The patterns are compiled into a binary prefix trie per protocol so that the
+ * cost of a check depends only upon the length of the address and not upon the
+ * number of patterns. Addresses to be checked which are written as IPv4 or
+ * IPv6 literals are parsed directly, without any involvement of the resolver.
+ * 
+ * A pattern may be preceded by "!" to make it a deny rule. When an address
+ * matches several patterns the last one in the list decides, so for example
+ * "10.0.0.0/8 !10.6.0.0/16" accepts 10.0.0.0/8 except for 10.6.0.0/16. An
+ * address matching no pattern is not accepted. Allow and deny rules are
+ * compiled into the same tries so a check is still a single pass.
+ * 
+ * The compiled patterns are held in an immutable snapshot which is replaced
+ * atomically when hostname patterns are resolved again, so a check never
+ * waits for DNS and never sees a partially built set of patterns.
  */
 public class AddressChecker {
 
-	private final List<Pattern> patterns = new ArrayList<Pattern>();
-
-	private static class Pattern {
-		private final InetAddress patternAddress;
-		private final BigInteger mask;
+	/**
+	 * One of the patterns passed to an AddressChecker, as reported by
+	 * {@link AddressChecker#match(String)}.
+	 */
+	public static class Rule {
+		private final int index;
+		private final String pattern;
+		private final boolean allow;
 
-		public Pattern(InetAddress patternAddress, Integer prefixLength) throws AddressCheckerException {
-			int inetAddressBits = patternAddress.getAddress().length * 8;
+		private Rule(int index, String pattern, boolean allow) {
+			this.index = index;
+			this.pattern = pattern;
+			this.allow = allow;
+		}
 
-			if (prefixLength == null) {
-				// Default to an exact match (/32 for IPv4, /128 for IPv6)
-				prefixLength = inetAddressBits;
-			}
+		/**
+		 * Get the position of the rule in the list of patterns
+		 * 
+		 * @return the zero based position
+		 */
+		public int getIndex() {
+			return index;
+		}
 
-			if (prefixLength > inetAddressBits) {
-				throw new AddressCheckerException(String.format("Prefix length %d cannot be greater than %d for address %s", prefixLength, inetAddressBits, patternAddress.getHostAddress()));
-			}
+		/**
+		 * Get the pattern without any leading "!"
+		 * 
+		 * @return the address, network or hostname of the pattern
+		 */
+		public String getPattern() {
+			return pattern;
+		}
 
-			/* Set the highest-order bits, e.g. for IPv4 with prefixLength=24:
-			 *  - bits 0-7 are set to 0
-			 *  - bits 8-31 are set to 1
-			 */
-			BigInteger mask = BigInteger.ZERO;
-			for (int i = 0; i < prefixLength; i++) {
-				mask = mask.setBit(inetAddressBits - i - 1);
-			}
+		/**
+		 * Say whether this is an allow or a deny rule
+		 * 
+		 * @return true if addresses matching the rule are accepted
+		 */
+		public boolean isAllow() {
+			return allow;
+		}
 
-			this.patternAddress = patternAddress;
-			this.mask = mask;
+		/**
+		 * Return the rule as it was written
+		 */
+		@Override
+		public String toString() {
+			return allow ? pattern : "!" + pattern;
 		}
+	}
 
-		public boolean matches(InetAddress address) {
-			// Check that they are the same protocol (IPv4/IPv6)
-			if (address.getAddress().length != patternAddress.getAddress().length) {
-				return false;
-			}
+	/** Cached in place of a Rule for addresses which match no pattern */
+	private static final Rule NO_MATCH = new Rule(-1, "", false);
 
-			BigInteger maskedAddress = inetAddressToBigInteger(address).and(mask);
-			BigInteger maskedPatternAddress = inetAddressToBigInteger(patternAddress).and(mask);
+	private static class Pattern {
+		private final Rule rule;
+		private final Integer prefixLength;
+		private final boolean hostname;
+		private final InetAddress[] inetAddresses;
 
-			return maskedAddress.equals(maskedPatternAddress);
+		private Pattern(Rule rule, Integer prefixLength, boolean hostname, InetAddress[] inetAddresses) {
+			this.rule = rule;
+			this.prefixLength = prefixLength;
+			this.hostname = hostname;
+			this.inetAddresses = inetAddresses;
 		}
-	}
 
-	private static BigInteger inetAddressToBigInteger(InetAddress inetAddress) {
-		// Takes a byte array in big-endian order, so it is suitable for network addresses
-		// '1' indicates that a positive number should be returned
-		return new BigInteger(1, inetAddress.getAddress());
-	}
+		private static Pattern parse(String s, int index) throws AddressCheckerException {
+			boolean allow = !s.startsWith("!");
+			String text = allow ? s : s.substring(1);
+			// An empty pattern resolves to loopback, as it always has, but a lone "!" is an error
+			if (!allow && text.isEmpty()) {
+				throw new AddressCheckerException(String.format("Invalid address: %s", s));
+			}
 
-	/**
-	 * Takes a space separated list of patterns to accept
-	 * 
-	 * @param patternString
-	 *            a space separated list of patterns to accept
-	 * @throws AddressCheckerException
-	 *             if any pattern is invalid.
-	 */
-	public AddressChecker(String patternString) throws AddressCheckerException {
-		for (String s : patternString.trim().split("\\s+")) {
 			// Split on the first "/", creating up to 2 parts
-			String[] parts = s.split("/", 2);
+			String[] parts = text.split("/", 2);
 
 			// A hostname can resolve to multiple IP addresses
 			InetAddress[] inetAddresses;
@@ -95,17 +137,403 @@ public class AddressChecker {
 				}
 			}
 
+			boolean hostname = false;
 			for (InetAddress inetAddress : inetAddresses) {
 				// InetAddress.toString() returns "<hostname>/<ip>", so it will only start with "/" if an IP was used.
-				if (!inetAddress.toString().startsWith("/") && maskBits != null) {
-					throw new AddressCheckerException(String.format("Cannot specify network prefix with a hostname: %s", s));
+				if (!inetAddress.toString().startsWith("/")) {
+					if (maskBits != null) {
+						throw new AddressCheckerException(String.format("Cannot specify network prefix with a hostname: %s", s));
+					}
+					hostname = true;
+				}
+
+				int inetAddressBits = inetAddress.getAddress().length * 8;
+				if (maskBits != null && maskBits > inetAddressBits) {
+					throw new AddressCheckerException(String.format("Prefix length %d cannot be greater than %d for address %s", maskBits, inetAddressBits, inetAddress.getHostAddress()));
+				}
+			}
+
+			return new Pattern(new Rule(index, text, allow), maskBits, hostname, inetAddresses);
+		}
+
+		/**
+		 * Look up a hostname pattern again.
+		 * 
+		 * @return this if the pattern is not a hostname or it still resolves to
+		 *         the same set of addresses, otherwise a new Pattern
+		 */
+		private Pattern resolve() throws UnknownHostException {
+			if (!hostname) {
+				return this;
+			}
+			InetAddress[] resolved = InetAddress.getAllByName(rule.pattern);
+			if (new HashSet<>(Arrays.asList(resolved)).equals(new HashSet<>(Arrays.asList(inetAddresses)))) {
+				return this;
+			}
+			return new Pattern(rule, prefixLength, hostname, resolved);
+		}
+	}
+
+	/**
+	 * Immutable compiled form of the patterns together with the verdict cache
+	 * (if any) for those patterns. As the cache belongs to the snapshot, a
+	 * verdict computed from one snapshot can never be cached against another.
+	 */
+	private static class Snapshot {
+		private final List<Pattern> patterns;
+		private final Rule[] rules;
+		private final AddressTrie ipv4 = new AddressTrie();
+		private final AddressTrie ipv6 = new AddressTrie();
+		private final boolean strict;
+		private final ClockCache<String, Rule> cache;
+
+		private Snapshot(List<Pattern> patterns, boolean strict, ClockCache<String, Rule> cache) {
+			this.patterns = patterns;
+			this.strict = strict;
+			this.cache = cache;
+			rules = new Rule[patterns.size()];
+			for (Pattern pattern : patterns) {
+				int index = pattern.rule.index;
+				rules[index] = pattern.rule;
+				for (InetAddress inetAddress : pattern.inetAddresses) {
+					byte[] bytes = inetAddress.getAddress();
+					// Default to an exact match (/32 for IPv4, /128 for IPv6)
+					int prefixLength = pattern.prefixLength == null ? bytes.length * 8 : pattern.prefixLength;
+					(bytes.length == 4 ? ipv4 : ipv6).add(bytes, prefixLength, index);
+				}
+			}
+		}
+
+		private boolean allows(int rule) {
+			return rule >= 0 && rules[rule].allow;
+		}
+
+		private Rule rule(int rule) {
+			return rule >= 0 ? rules[rule] : NO_MATCH;
+		}
+	}
+
+	/** Checks the i'th element of some collection of addresses */
+	private interface IndexedCheck {
+		boolean check(int i) throws AddressCheckerException;
+	}
+
+	@SuppressWarnings("serial")
+	private static class BulkCheckException extends RuntimeException {
+		private BulkCheckException(AddressCheckerException cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Fork/join task to fill in the bits of a range of the result of a bulk
+	 * check. Ranges are split on multiples of 64 so that each task writes to
+	 * its own words of the bit array.
+	 */
+	@SuppressWarnings("serial")
+	private static class BulkCheck extends RecursiveAction {
+		private static final int THRESHOLD = 4096;
+
+		private final IndexedCheck check;
+		private final long[] words;
+		private final int from;
+		private final int to;
+
+		private BulkCheck(IndexedCheck check, long[] words, int from, int to) {
+			this.check = check;
+			this.words = words;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				try {
+					fill(check, words, from, to);
+				} catch (AddressCheckerException e) {
+					throw new BulkCheckException(e);
 				}
+			} else {
+				int mid = from + ((to - from) / 2 & ~63);
+				invokeAll(new BulkCheck(check, words, from, mid), new BulkCheck(check, words, mid, to));
+			}
+		}
+	}
+
+	private static class RefreshExecutorHolder {
+		private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "AddressChecker refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * Refreshes an AddressChecker without keeping it reachable, cancelling
+	 * itself once the AddressChecker has been collected
+	 */
+	private static class RefreshTask implements Runnable {
+		private final WeakReference<AddressChecker> checker;
+		private volatile ScheduledFuture<?> future;
+
+		private RefreshTask(AddressChecker checker) {
+			this.checker = new WeakReference<>(checker);
+		}
 
-				patterns.add(new Pattern(inetAddress, maskBits));
+		@Override
+		public void run() {
+			AddressChecker a = checker.get();
+			if (a == null) {
+				future.cancel(false);
+				return;
+			}
+			try {
+				a.refresh();
+			} catch (AddressCheckerException e) {
+				// Keep the previous addresses and try again later
 			}
 		}
 	}
 
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+
+	private ScheduledFuture<?> refreshTask;
+
+	/**
+	 * Takes a space separated list of patterns to accept
+	 * 
+	 * @param patternString
+	 *            a space separated list of patterns to accept
+	 * @throws AddressCheckerException
+	 *             if any pattern is invalid.
+	 */
+	public AddressChecker(String patternString) throws AddressCheckerException {
+		snapshot.set(new Snapshot(parsePatterns(patternString), false, null));
+	}
+
+	private static List<Pattern> parsePatterns(String patternString) throws AddressCheckerException {
+		List<Pattern> patterns = new ArrayList<>();
+		for (String s : patternString.trim().split("\\s+")) {
+			patterns.add(Pattern.parse(s, patterns.size()));
+		}
+		return patterns;
+	}
+
+	/**
+	 * Replace the patterns to accept. The new patterns are compiled before
+	 * being switched to atomically so checks in progress are not disturbed.
+	 * If any pattern is invalid the existing ones are kept.
+	 * 
+	 * @param patternString
+	 *            a space separated list of patterns to accept
+	 * @throws AddressCheckerException
+	 *             if any pattern is invalid.
+	 */
+	public void setPatterns(String patternString) throws AddressCheckerException {
+		// Resolve outside the lock so that other settings are not held up
+		List<Pattern> patterns = parsePatterns(patternString);
+		synchronized (this) {
+			Snapshot s = snapshot.get();
+			publish(patterns, s.strict, cacheSize(s));
+		}
+	}
+
+	/**
+	 * Replace the current snapshot by one built from the specified patterns
+	 * and the current settings. A fresh cache is created if caching is
+	 * enabled.
+	 */
+	private void publish(List<Pattern> patterns, boolean strict, int cacheSize) {
+		ClockCache<String, Rule> cache = cacheSize == 0 ? null
+				: new ClockCache<String, Rule>(cacheSize, cacheHits, cacheMisses);
+		snapshot.set(new Snapshot(patterns, strict, cache));
+	}
+
+	private static int cacheSize(Snapshot s) {
+		return s.cache == null ? 0 : s.cache.capacity();
+	}
+
+	/**
+	 * Control what happens when an address passed to {@link #check(String)} is
+	 * not an IPv4 or IPv6 literal. By default it is treated as a hostname and
+	 * looked up which may block while DNS is consulted. In strict mode it is
+	 * rejected immediately.
+	 * 
+	 * @param strict
+	 *            true to reject anything which is not an address literal
+	 */
+	public synchronized void setStrict(boolean strict) {
+		Snapshot s = snapshot.get();
+		publish(s.patterns, strict, cacheSize(s));
+	}
+
+	/**
+	 * Enable or disable caching of the results of {@link #check(String)}. This
+	 * is worthwhile when the same small set of addresses is checked repeatedly
+	 * as each repeat then costs a single hash lookup. Addresses which are badly
+	 * formed are never cached. If hostnames are being checked (i.e. strict mode
+	 * is off) note that the verdict for a hostname is cached rather than being
+	 * looked up again.
+	 * 
+	 * The cache is emptied whenever the patterns are resolved to different
+	 * addresses. Setting the size discards any existing cache, including its
+	 * hit and miss counts.
+	 * 
+	 * @param size
+	 *            the maximum number of addresses to remember or zero to
+	 *            disable the cache
+	 */
+	public synchronized void setCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Cache size cannot be negative: " + size);
+		}
+		cacheHits.reset();
+		cacheMisses.reset();
+		Snapshot s = snapshot.get();
+		publish(s.patterns, s.strict, size);
+	}
+
+	/**
+	 * Get the number of checks answered from the cache
+	 * 
+	 * @return the number of cache hits
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Get the number of checks which were not answered from the cache
+	 * 
+	 * @return the number of cache misses
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * Look up all hostname patterns again and, if any now resolve to different
+	 * addresses, rebuild the compiled patterns and switch to them. Checks
+	 * continue to use the previous patterns until the switch. If any hostname
+	 * cannot be resolved the previous patterns are kept. The lookups are done
+	 * without holding the lock, so other settings are not held up by a slow
+	 * DNS server, and their results are dropped if the patterns are replaced
+	 * meanwhile.
+	 * 
+	 * @throws AddressCheckerException
+	 *             if a hostname could not be resolved
+	 */
+	public void refresh() throws AddressCheckerException {
+		Snapshot s = snapshot.get();
+		List<Pattern> patterns = new ArrayList<>(s.patterns.size());
+		boolean changed = false;
+		for (Pattern pattern : s.patterns) {
+			Pattern resolved;
+			try {
+				resolved = pattern.resolve();
+			} catch (UnknownHostException e) {
+				throw new AddressCheckerException(String.format("Invalid address: %s", pattern.rule.pattern));
+			}
+			changed |= resolved != pattern;
+			patterns.add(resolved);
+		}
+		if (changed) {
+			synchronized (this) {
+				Snapshot current = snapshot.get();
+				if (current.patterns == s.patterns) {
+					publish(patterns, current.strict, cacheSize(current));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start resolving hostname patterns again in the background, as by
+	 * {@link #refresh()}, at a fixed interval. Failures to resolve are ignored
+	 * and the previous addresses retained until the next attempt. The
+	 * background thread is a daemon shared by all instances of AddressChecker.
+	 * Any previously started refresh is replaced. The background task only
+	 * holds the AddressChecker weakly, so one which is no longer used is
+	 * collected, and its refresh stopped, even without
+	 * {@link #stopRefresh()}.
+	 * 
+	 * @param ttl
+	 *            how long resolved addresses may be used before being looked
+	 *            up again
+	 * @param unit
+	 *            the unit of ttl
+	 */
+	public synchronized void startRefresh(long ttl, TimeUnit unit) {
+		stopRefresh();
+		RefreshTask task = new RefreshTask(this);
+		refreshTask = RefreshExecutorHolder.executor.scheduleWithFixedDelay(task, ttl, ttl, unit);
+		task.future = refreshTask;
+	}
+
+	/**
+	 * Stop any background resolution started by
+	 * {@link #startRefresh(long, TimeUnit)}.
+	 */
+	public synchronized void stopRefresh() {
+		if (refreshTask != null) {
+			refreshTask.cancel(false);
+			refreshTask = null;
+		}
+	}
+
+	/**
+	 * Check that an IP address matches one of the desired patterns and that the
+	 * last such pattern is not a deny rule
+	 * 
+	 * @param address
+	 *            the input address
+	 * 
+	 * @return true if it is accepted
+	 * @throws AddressCheckerException
+	 *             if the address is badly formed or, in strict mode, is not an
+	 *             address literal.
+	 */
+	public boolean check(String address) throws AddressCheckerException {
+		Snapshot s = snapshot.get();
+		if (s.cache == null) {
+			return s.allows(match(s, address));
+		}
+		return lookup(s, address).allow;
+	}
+
+	/**
+	 * Find the rule which decides whether or not an IP address is accepted.
+	 * This is intended for logging decisions; the rules are created with the
+	 * AddressChecker so nothing is allocated to report them.
+	 * 
+	 * @param address
+	 *            the input address
+	 * 
+	 * @return the last rule in the list which matches the address or null if
+	 *         none does
+	 * @throws AddressCheckerException
+	 *             if the address is badly formed or, in strict mode, is not an
+	 *             address literal.
+	 */
+	public Rule match(String address) throws AddressCheckerException {
+		Snapshot s = snapshot.get();
+		Rule rule = s.cache == null ? s.rule(match(s, address)) : lookup(s, address);
+		return rule == NO_MATCH ? null : rule;
+	}
+
+	private static Rule lookup(Snapshot s, String address) throws AddressCheckerException {
+		Rule rule = s.cache.get(address);
+		if (rule == null) {
+			rule = s.rule(match(s, address));
+			s.cache.put(address, rule);
+		}
+		return rule;
+	}
+
 	/**
 	 * Check that an IP address matches one of the desired patterns
 	 * 
@@ -113,10 +541,157 @@ public class AddressChecker {
 	 *            the input address
 	 * 
 	 * @return true if it matches
+	 */
+	public boolean check(InetAddress address) {
+		Snapshot s = snapshot.get();
+		return s.allows(match(s, address.getAddress()));
+	}
+
+	/**
+	 * Check that an IP address matches one of the desired patterns. As with
+	 * InetAddress, an IPv4-mapped IPv6 address is treated as IPv4.
+	 * 
+	 * @param address
+	 *            the input address as 4 or 16 bytes in network byte order
+	 * 
+	 * @return true if it matches
 	 * @throws AddressCheckerException
-	 *             if the address is badly formed.
+	 *             if the address is neither 4 nor 16 bytes long.
 	 */
-	public boolean check(String address) throws AddressCheckerException {
+	public boolean check(byte[] address) throws AddressCheckerException {
+		if (address.length != 4 && address.length != 16) {
+			throw new AddressCheckerException(String.format("Invalid address length: %d", address.length));
+		}
+		Snapshot s = snapshot.get();
+		return s.allows(match(s, address));
+	}
+
+	/**
+	 * Check that an IPv4 address matches one of the desired patterns
+	 * 
+	 * @param ipv4
+	 *            the input address with the first octet in the most
+	 *            significant byte
+	 * 
+	 * @return true if it matches
+	 */
+	public boolean check(int ipv4) {
+		Snapshot s = snapshot.get();
+		return s.allows(s.ipv4.match(ipv4));
+	}
+
+	/**
+	 * Check many IPv4 addresses against the same snapshot of the patterns
+	 * 
+	 * @param ipv4s
+	 *            the input addresses, each with the first octet in the most
+	 *            significant byte
+	 * 
+	 * @return a BitSet with bit i set if ipv4s[i] matches
+	 */
+	public BitSet check(int[] ipv4s) {
+		return check(ipv4s, false);
+	}
+
+	/**
+	 * Check many IPv4 addresses against the same snapshot of the patterns
+	 * 
+	 * @param ipv4s
+	 *            the input addresses, each with the first octet in the most
+	 *            significant byte
+	 * @param parallel
+	 *            if true split the work across the common fork/join pool
+	 * 
+	 * @return a BitSet with bit i set if ipv4s[i] matches
+	 */
+	public BitSet check(int[] ipv4s, boolean parallel) {
+		Snapshot s = snapshot.get();
+		try {
+			return bulkCheck(i -> s.allows(s.ipv4.match(ipv4s[i])), ipv4s.length, parallel);
+		} catch (AddressCheckerException e) {
+			// Cannot happen as matching an int never fails
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Check many addresses against the same snapshot of the patterns. This
+	 * bypasses the cache so as not to flush it with addresses which will not
+	 * be seen again.
+	 * 
+	 * @param addresses
+	 *            the input addresses
+	 * 
+	 * @return a BitSet with bit i set if the i'th address, in the iteration
+	 *         order of the collection, matches
+	 * @throws AddressCheckerException
+	 *             if any address is badly formed or, in strict mode, is not an
+	 *             address literal.
+	 */
+	public BitSet check(Collection<String> addresses) throws AddressCheckerException {
+		return check(addresses, false);
+	}
+
+	/**
+	 * Check many addresses against the same snapshot of the patterns. This
+	 * bypasses the cache so as not to flush it with addresses which will not
+	 * be seen again.
+	 * 
+	 * @param addresses
+	 *            the input addresses
+	 * @param parallel
+	 *            if true split the work across the common fork/join pool
+	 * 
+	 * @return a BitSet with bit i set if the i'th address, in the iteration
+	 *         order of the collection, matches
+	 * @throws AddressCheckerException
+	 *             if any address is badly formed or, in strict mode, is not an
+	 *             address literal.
+	 */
+	public BitSet check(Collection<String> addresses, boolean parallel) throws AddressCheckerException {
+		Snapshot s = snapshot.get();
+		String[] a = addresses.toArray(new String[0]);
+		return bulkCheck(i -> s.allows(match(s, a[i])), a.length, parallel);
+	}
+
+	private static BitSet bulkCheck(IndexedCheck check, int n, boolean parallel) throws AddressCheckerException {
+		long[] words = new long[(n + 63) / 64];
+		if (parallel && n > BulkCheck.THRESHOLD) {
+			try {
+				ForkJoinPool.commonPool().invoke(new BulkCheck(check, words, 0, n));
+			} catch (BulkCheckException e) {
+				throw (AddressCheckerException) e.getCause();
+			}
+		} else {
+			fill(check, words, 0, n);
+		}
+		return BitSet.valueOf(words);
+	}
+
+	private static void fill(IndexedCheck check, long[] words, int from, int to) throws AddressCheckerException {
+		for (int i = from; i < to; i++) {
+			if (check.check(i)) {
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of the deciding rule or -1 if none matches
+	 */
+	private static int match(Snapshot s, String address) throws AddressCheckerException {
+		long[] parsed = new long[2];
+		switch (AddressParser.parse(address, parsed)) {
+		case AddressParser.IPV4:
+			return s.ipv4.match((int) parsed[0]);
+		case AddressParser.IPV6:
+			return s.ipv6.match(parsed[0], parsed[1]);
+		default:
+			if (s.strict) {
+				throw new AddressCheckerException(String.format("Invalid address: %s", address));
+			}
+		}
+
 		InetAddress inetAddress;
 		try {
 			inetAddress = InetAddress.getByName(address);
@@ -124,12 +699,31 @@ public class AddressChecker {
 			throw new AddressCheckerException(String.format("Invalid address: %s", address));
 		}
 
-		for (Pattern pattern : patterns) {
-			if (pattern.matches(inetAddress)) {
-				return true;
-			}
+		return match(s, inetAddress.getAddress());
+	}
+
+	/**
+	 * @return the number of the deciding rule or -1 if none matches
+	 */
+	private static int match(Snapshot s, byte[] bytes) {
+		if (bytes.length == 4) {
+			return s.ipv4.match(toInt(bytes, 0));
+		}
+		long high = toLong(bytes, 0);
+		long low = toLong(bytes, 8);
+		if (high == 0 && low >>> 32 == 0xFFFFL) {
+			// IPv4-mapped
+			return s.ipv4.match((int) low);
 		}
+		return s.ipv6.match(high, low);
+	}
+
+	private static int toInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8
+				| (bytes[offset + 3] & 0xFF);
+	}
 
-		return false;
+	private static long toLong(byte[] bytes, int offset) {
+		return (toInt(bytes, offset) & 0xFFFFFFFFL) << 32 | (toInt(bytes, offset + 4) & 0xFFFFFFFFL);
 	}
 }
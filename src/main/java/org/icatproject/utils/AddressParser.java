@@ -0,0 +1,226 @@
+package org.icatproject.utils;
+
+/**
+ * Parses IPv4 and IPv6 address literals without going through
+ * InetAddress so that no resolver is involved and nothing is allocated.
+ * 
+ * Only the canonical forms are recognised: a dotted quad of decimal octets
+ * without leading zeros for IPv4, and the usual hexadecimal notation for
+ * IPv6, optionally in square brackets, with "::" compression, an embedded
+ * dotted quad as the last 32 bits and a zone id (which is ignored). Anything
+ * else is reported as not being a literal, leaving the caller to decide
+ * whether or not to resolve it.
+ * 
+ * As with InetAddress, an IPv4-mapped IPv6 address (::ffff:a.b.c.d) is
+ * returned as an IPv4 address.
+ */
+class AddressParser {
+
+	/** Returned when the string is not an address literal */
+	static final int NONE = 0;
+
+	/** Returned for an IPv4 address which is stored in result[0] */
+	static final int IPV4 = 4;
+
+	/**
+	 * Returned for an IPv6 address whose first and last 64 bits are stored in
+	 * result[0] and result[1]
+	 */
+	static final int IPV6 = 16;
+
+	private AddressParser() {
+	}
+
+	/**
+	 * Parse an address literal
+	 * 
+	 * @param s
+	 *            the string to parse
+	 * @param result
+	 *            an array of at least two elements to receive the address
+	 * 
+	 * @return one of NONE, IPV4 or IPV6
+	 */
+	static int parse(String s, long[] result) {
+		int end = s.length();
+		if (end == 0) {
+			return NONE;
+		}
+
+		if (s.charAt(0) == '[') {
+			if (s.charAt(end - 1) != ']') {
+				return NONE;
+			}
+			return parseIpv6(s, 1, end - 1, result);
+		}
+
+		if (s.indexOf(':') < 0) {
+			long v4 = parseIpv4(s, 0, end);
+			if (v4 < 0) {
+				return NONE;
+			}
+			result[0] = v4;
+			return IPV4;
+		}
+
+		return parseIpv6(s, 0, end, result);
+	}
+
+	/**
+	 * Parse a dotted quad.
+	 * 
+	 * @return the address as an unsigned 32 bit value or -1 if it is not valid
+	 */
+	private static long parseIpv4(String s, int start, int end) {
+		long value = 0;
+		int octets = 0;
+		int i = start;
+		while (true) {
+			int octetStart = i;
+			int octet = 0;
+			char c;
+			while (i < end && (c = s.charAt(i)) >= '0' && c <= '9') {
+				octet = octet * 10 + c - '0';
+				if (++i - octetStart > 3) {
+					return -1;
+				}
+			}
+			int digits = i - octetStart;
+			if (digits == 0 || (digits > 1 && s.charAt(octetStart) == '0') || octet > 255) {
+				return -1;
+			}
+			value = value << 8 | octet;
+			octets++;
+			if (i == end) {
+				return octets == 4 ? value : -1;
+			}
+			if (octets == 4 || s.charAt(i) != '.') {
+				return -1;
+			}
+			i++;
+		}
+	}
+
+	private static int parseIpv6(String s, int start, int end, long[] result) {
+		int zone = s.indexOf('%', start);
+		if (zone >= 0 && zone < end) {
+			if (zone == end - 1) {
+				return NONE;
+			}
+			end = zone;
+		}
+
+		result[0] = 0;
+		result[1] = 0;
+		int gap = s.indexOf("::", start);
+		if (gap < 0 || gap + 2 > end) {
+			if (countGroups(s, start, end) != 8 || !placeGroups(s, start, end, 0, true, result)) {
+				return NONE;
+			}
+		} else {
+			int next = s.indexOf("::", gap + 1);
+			if (next >= 0 && next + 2 <= end) {
+				return NONE;
+			}
+			int before = countGroups(s, start, gap);
+			int after = countGroups(s, gap + 2, end);
+			if (before + after > 7) {
+				return NONE;
+			}
+			if (before > 0 && !placeGroups(s, start, gap, 0, false, result)) {
+				return NONE;
+			}
+			if (after > 0 && !placeGroups(s, gap + 2, end, 8 - after, true, result)) {
+				return NONE;
+			}
+		}
+
+		if (result[0] == 0 && result[1] >>> 32 == 0xFFFFL) {
+			result[0] = result[1] & 0xFFFFFFFFL;
+			return IPV4;
+		}
+		return IPV6;
+	}
+
+	/**
+	 * Count the 16 bit groups between start and end where an embedded dotted
+	 * quad counts as two.
+	 */
+	private static int countGroups(String s, int start, int end) {
+		if (start == end) {
+			return 0;
+		}
+		int groups = 1;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == ':') {
+				groups++;
+			} else if (c == '.') {
+				groups++;
+				break;
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Store the colon separated groups between start and end into result
+	 * starting at the specified group number. If allowIpv4 is set the last two
+	 * groups may be written as a dotted quad.
+	 * 
+	 * @return false if the groups are badly formed
+	 */
+	private static boolean placeGroups(String s, int start, int end, int group, boolean allowIpv4,
+			long[] result) {
+		int i = start;
+		while (true) {
+			int groupStart = i;
+			int value = 0;
+			int digit;
+			while (i < end && (digit = hexDigit(s.charAt(i))) >= 0) {
+				value = value << 4 | digit;
+				if (++i - groupStart > 4) {
+					return false;
+				}
+			}
+			if (allowIpv4 && i < end && s.charAt(i) == '.') {
+				long v4 = parseIpv4(s, groupStart, end);
+				if (v4 < 0) {
+					return false;
+				}
+				setGroup(result, group, (int) (v4 >>> 16));
+				setGroup(result, group + 1, (int) (v4 & 0xFFFF));
+				return true;
+			}
+			if (i == groupStart) {
+				return false;
+			}
+			setGroup(result, group++, value);
+			if (i == end) {
+				return true;
+			}
+			if (s.charAt(i) != ':' || ++i == end) {
+				return false;
+			}
+		}
+	}
+
+	/** Unlike Character.digit this only accepts ASCII characters */
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	private static void setGroup(long[] result, int group, int value) {
+		result[group >>> 2] |= (long) value << (16 * (3 - (group & 3)));
+	}
+
+}
@@ -0,0 +1,108 @@
+package org.icatproject.utils;
+
+import java.util.Arrays;
+
+/**
+ * Binary prefix trie over the bits of IPv4 or IPv6 addresses. Each prefix is
+ * labelled with the number of the rule it came from and a lookup finds the
+ * highest numbered rule with a prefix matching the address. A lookup walks at
+ * most one node per address bit and allocates nothing. Nodes are held in
+ * parallel arrays indexed by node number, with node 0 being the root; as the
+ * root is never a child a child index of 0 means "no child".
+ * 
+ * It is populated by a single thread and then only read, so once it has been
+ * safely published lookups may be made concurrently.
+ */
+class AddressTrie {
+
+	private int[] zero = new int[16];
+	private int[] one = new int[16];
+	/* One more than the highest rule ending at each node, so 0 means none */
+	private int[] rules = new int[16];
+	private int size = 1;
+
+	/**
+	 * Add a prefix to the trie
+	 * 
+	 * @param address
+	 *            the address in network byte order
+	 * @param prefixLength
+	 *            number of leading bits of the address which must match
+	 * @param rule
+	 *            the non-negative number of the rule the prefix belongs to
+	 */
+	void add(byte[] address, int prefixLength, int rule) {
+		int node = 0;
+		for (int i = 0; i < prefixLength; i++) {
+			boolean bit = (address[i >>> 3] & (0x80 >>> (i & 7))) != 0;
+			int child = bit ? one[node] : zero[node];
+			if (child == 0) {
+				child = newNode();
+				if (bit) {
+					one[node] = child;
+				} else {
+					zero[node] = child;
+				}
+			}
+			node = child;
+		}
+		rules[node] = Math.max(rules[node], rule + 1);
+	}
+
+	private int newNode() {
+		if (size == rules.length) {
+			int capacity = size * 2;
+			zero = Arrays.copyOf(zero, capacity);
+			one = Arrays.copyOf(one, capacity);
+			rules = Arrays.copyOf(rules, capacity);
+		}
+		return size++;
+	}
+
+	/**
+	 * Match an IPv4 address
+	 * 
+	 * @param address
+	 *            the 32 bits of the address with the first octet in the most
+	 *            significant byte
+	 * 
+	 * @return the highest rule with a matching prefix or -1 if there is none
+	 */
+	int match(int address) {
+		int node = 0;
+		int best = rules[0];
+		for (int i = 31; i >= 0; i--) {
+			node = ((address >>> i) & 1) == 0 ? zero[node] : one[node];
+			if (node == 0) {
+				break;
+			}
+			best = Math.max(best, rules[node]);
+		}
+		return best - 1;
+	}
+
+	/**
+	 * Match an IPv6 address
+	 * 
+	 * @param high
+	 *            the first 64 bits of the address
+	 * @param low
+	 *            the last 64 bits of the address
+	 * 
+	 * @return the highest rule with a matching prefix or -1 if there is none
+	 */
+	int match(long high, long low) {
+		int node = 0;
+		int best = rules[0];
+		for (int i = 0; i < 128; i++) {
+			long half = i < 64 ? high : low;
+			node = ((half >>> (63 - (i & 63))) & 1) == 0 ? zero[node] : one[node];
+			if (node == 0) {
+				break;
+			}
+			best = Math.max(best, rules[node]);
+		}
+		return best - 1;
+	}
+
+}
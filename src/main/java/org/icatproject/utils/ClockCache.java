@@ -0,0 +1,189 @@
+package org.icatproject.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A size bounded cache which may be used concurrently. A read is a single
+ * ConcurrentHashMap lookup with no locking. Writes are serialised and, once
+ * the cache is full, evict an entry chosen by the CLOCK algorithm: entries sit
+ * in a ring, each read sets a flag on its entry and the eviction hand clears
+ * flags as it passes until it finds an entry that has not been read since its
+ * last visit. This approximates LRU without reads having to update any shared
+ * structure.
+ * 
+ * Null keys and values are not supported.
+ */
+class ClockCache<K, V> {
+
+	private static class Entry<K, V> {
+		private final K key;
+		private final V value;
+		private volatile boolean referenced;
+
+		private Entry(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<K, V>> map;
+	private final Entry<K, V>[] ring;
+	private int used;
+	private int hand;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries to hold which must be positive
+	 */
+	ClockCache(int capacity) {
+		this(capacity, new LongAdder(), new LongAdder());
+	}
+
+	/**
+	 * Create a cache which records its hits and misses in counters supplied by
+	 * the caller. This allows a cache to be replaced by an empty one without
+	 * losing the statistics.
+	 * 
+	 * @param capacity
+	 *            the maximum number of entries to hold which must be positive
+	 * @param hits
+	 *            counter to increment on each hit
+	 * @param misses
+	 *            counter to increment on each miss
+	 */
+	@SuppressWarnings("unchecked")
+	ClockCache(int capacity, LongAdder hits, LongAdder misses) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+		}
+		map = new ConcurrentHashMap<>(Math.min(capacity, 1024) * 4 / 3 + 1);
+		ring = (Entry<K, V>[]) new Entry<?, ?>[capacity];
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	/**
+	 * @return the maximum number of entries
+	 */
+	int capacity() {
+		return ring.length;
+	}
+
+	/**
+	 * Look up a value
+	 * 
+	 * @param key
+	 *            the key
+	 * 
+	 * @return the cached value or null if there is none
+	 */
+	V get(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		if (!entry.referenced) {
+			entry.referenced = true;
+		}
+		hits.increment();
+		return entry.value;
+	}
+
+	/**
+	 * Store a value unless one is already cached for the key, evicting another
+	 * entry if the cache is full.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 */
+	synchronized void put(K key, V value) {
+		if (map.containsKey(key)) {
+			return;
+		}
+		int slot;
+		if (used < ring.length) {
+			slot = used++;
+		} else {
+			while (ring[hand].referenced) {
+				ring[hand].referenced = false;
+				hand = (hand + 1) % ring.length;
+			}
+			map.remove(ring[hand].key, ring[hand]);
+			slot = hand;
+			hand = (hand + 1) % ring.length;
+		}
+		Entry<K, V> entry = new Entry<>(key, value);
+		ring[slot] = entry;
+		map.put(key, entry);
+	}
+
+	/**
+	 * Remove all entries. The hit and miss counts are not reset.
+	 */
+	synchronized void clear() {
+		map.clear();
+		for (int i = 0; i < used; i++) {
+			ring[i] = null;
+		}
+		used = 0;
+		hand = 0;
+	}
+
+	/**
+	 * Remove the entries whose keys satisfy a condition. The hit and miss
+	 * counts are not changed.
+	 * 
+	 * @param condition
+	 *            test of the keys to remove
+	 */
+	synchronized void removeIf(Predicate<? super K> condition) {
+		int kept = 0;
+		int newHand = 0;
+		for (int i = 0; i < used; i++) {
+			if (i == hand) {
+				newHand = kept;
+			}
+			Entry<K, V> entry = ring[i];
+			if (condition.test(entry.key)) {
+				map.remove(entry.key, entry);
+			} else {
+				ring[kept++] = entry;
+			}
+		}
+		for (int i = kept; i < used; i++) {
+			ring[i] = null;
+		}
+		used = kept;
+		hand = newHand < kept ? newHand : 0;
+	}
+
+	/**
+	 * @return the number of entries currently cached
+	 */
+	int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return the number of calls to get which found a value
+	 */
+	long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of calls to get which found nothing
+	 */
+	long getMisses() {
+		return misses.sum();
+	}
+
+}
@@ -0,0 +1,272 @@
+package org.icatproject.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import org.icatproject.utils.IcatUnits.SiConverter;
+
+/**
+ * Converts a column of values in a delimited text file, such as CSV or TSV,
+ * to SI units, taking the units of each value from another column of the same
+ * row. The value and units fields of each row which can be converted are
+ * replaced by the value in SI units and the name of the SI units, and all
+ * other fields and rows are written out unchanged.
+ * 
+ * The file is streamed in batches of rows, so the memory used depends on the
+ * batch size rather than on the size of the file. Each batch is converted,
+ * across the common fork/join pool if parallel conversion is enabled, and
+ * then written out in its original order.
+ * 
+ * A field may be enclosed in double quotes, in which case it may contain the
+ * delimiter and a quote is written as two quotes, but a row may not span
+ * lines.
+ */
+public class DelimitedUnitsConverter {
+
+	private final IcatUnits icatUnits;
+	private final int valueColumn;
+	private final int unitsColumn;
+	private char delimiter = ',';
+	private boolean header;
+	private int batchSize = 8192;
+	private boolean parallel = true;
+
+	/**
+	 * Create a converter for rows with the value and its units in the
+	 * specified columns. By default fields are separated by commas, there is
+	 * no header row and batches are converted in parallel.
+	 * 
+	 * @param icatUnits
+	 *            the units conversions to apply
+	 * @param valueColumn
+	 *            the zero based number of the column holding the values
+	 * @param unitsColumn
+	 *            the zero based number of the column holding the units
+	 */
+	public DelimitedUnitsConverter(IcatUnits icatUnits, int valueColumn, int unitsColumn) {
+		if (valueColumn < 0 || unitsColumn < 0 || valueColumn == unitsColumn) {
+			throw new IllegalArgumentException(
+					"Value and units columns must be distinct and not negative: " + valueColumn + ", " + unitsColumn);
+		}
+		this.icatUnits = icatUnits;
+		this.valueColumn = valueColumn;
+		this.unitsColumn = unitsColumn;
+	}
+
+	/**
+	 * Set the character which separates fields, which is a comma by default.
+	 * 
+	 * @param delimiter
+	 *            the delimiter, for example a tab for TSV
+	 */
+	public void setDelimiter(char delimiter) {
+		if (delimiter == '"' || delimiter == '\n' || delimiter == '\r') {
+			throw new IllegalArgumentException("Invalid delimiter: " + delimiter);
+		}
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Specify whether or not the first row holds column names, in which case
+	 * it is copied without being converted.
+	 * 
+	 * @param header
+	 *            true if there is a header row
+	 */
+	public void setHeader(boolean header) {
+		this.header = header;
+	}
+
+	/**
+	 * Set the number of rows held in memory and converted together. The
+	 * default is 8192.
+	 * 
+	 * @param batchSize
+	 *            a positive number of rows
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Specify whether or not the rows of a batch are converted in parallel.
+	 * 
+	 * @param parallel
+	 *            true to use the common fork/join pool
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Convert a file. Both files are UTF-8.
+	 * 
+	 * @param input
+	 *            the file to read
+	 * @param output
+	 *            the file to write, which is replaced if it exists
+	 * 
+	 * @return the number of rows which were converted
+	 * 
+	 * @throws IOException
+	 *             if either file cannot be accessed
+	 */
+	public long convert(Path input, Path output) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+				BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+			return convert(reader, writer);
+		}
+	}
+
+	/**
+	 * Convert rows from a reader, writing each row followed by a newline. The
+	 * reader and writer are not closed.
+	 * 
+	 * @param reader
+	 *            where to read the rows
+	 * @param writer
+	 *            where to write the rows
+	 * 
+	 * @return the number of rows which were converted
+	 * 
+	 * @throws IOException
+	 *             if reading or writing fails
+	 */
+	public long convert(BufferedReader reader, Writer writer) throws IOException {
+		if (header) {
+			String line = reader.readLine();
+			if (line == null) {
+				return 0;
+			}
+			writer.write(line);
+			writer.write('\n');
+		}
+
+		String[] lines = new String[batchSize];
+		LongAdder converted = new LongAdder();
+		while (true) {
+			int n = 0;
+			String line;
+			while (n < lines.length && (line = reader.readLine()) != null) {
+				lines[n++] = line;
+			}
+			if (n == 0) {
+				break;
+			}
+			IntStream rows = IntStream.range(0, n);
+			if (parallel) {
+				rows = rows.parallel();
+			}
+			rows.forEach(i -> {
+				String result = convertLine(lines[i]);
+				if (result != lines[i]) {
+					lines[i] = result;
+					converted.increment();
+				}
+			});
+			for (int i = 0; i < n; i++) {
+				writer.write(lines[i]);
+				writer.write('\n');
+			}
+			if (n < lines.length) {
+				break;
+			}
+		}
+		writer.flush();
+		return converted.sum();
+	}
+
+	/**
+	 * @return the converted row or the same instance if it could not be
+	 *         converted
+	 */
+	private String convertLine(String line) {
+		int valueStart = -1, valueEnd = -1, unitsStart = -1, unitsEnd = -1;
+		int lastColumn = Math.max(valueColumn, unitsColumn);
+		int start = 0;
+		for (int column = 0; column <= lastColumn; column++) {
+			if (start > line.length()) {
+				return line;
+			}
+			int end = fieldEnd(line, start);
+			if (end < 0) {
+				return line;
+			}
+			if (column == valueColumn) {
+				valueStart = start;
+				valueEnd = end;
+			} else if (column == unitsColumn) {
+				unitsStart = start;
+				unitsEnd = end;
+			}
+			start = end + 1;
+		}
+
+		SiConverter converter = icatUnits.converterFor(field(line, unitsStart, unitsEnd).trim());
+		if (!converter.isConvertible()) {
+			return line;
+		}
+		double value;
+		try {
+			value = Double.parseDouble(field(line, valueStart, valueEnd));
+		} catch (NumberFormatException e) {
+			return line;
+		}
+
+		String siValue = Double.toString(converter.toSi(value));
+		String siUnits = converter.getSiUnit();
+		StringBuilder sb = new StringBuilder(line.length() + 16);
+		if (valueStart < unitsStart) {
+			sb.append(line, 0, valueStart).append(siValue).append(line, valueEnd, unitsStart).append(siUnits)
+					.append(line, unitsEnd, line.length());
+		} else {
+			sb.append(line, 0, unitsStart).append(siUnits).append(line, unitsEnd, valueStart).append(siValue)
+					.append(line, valueEnd, line.length());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the index of the delimiter or end of line after the field
+	 *         starting at start, or -1 if a quoted field is not closed
+	 */
+	private int fieldEnd(String line, int start) {
+		int i = start;
+		if (i < line.length() && line.charAt(i) == '"') {
+			i++;
+			while (true) {
+				int quote = line.indexOf('"', i);
+				if (quote < 0) {
+					return -1;
+				}
+				if (quote + 1 < line.length() && line.charAt(quote + 1) == '"') {
+					i = quote + 2;
+				} else {
+					i = quote + 1;
+					break;
+				}
+			}
+		}
+		int end = line.indexOf(delimiter, i);
+		return end < 0 ? line.length() : end;
+	}
+
+	/** The content of a field with any enclosing quotes removed */
+	private static String field(String line, int start, int end) {
+		if (end - start >= 2 && line.charAt(start) == '"' && line.charAt(end - 1) == '"') {
+			return line.substring(start + 1, end - 1).replace("\"\"", "\"");
+		}
+		return line.substring(start, end);
+	}
+
+}
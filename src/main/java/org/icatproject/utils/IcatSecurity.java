@@ -1,28 +1,416 @@
 package org.icatproject.utils;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
 
 public class IcatSecurity {
 
+	/** The number of hexadecimal characters in a digest */
+	public static final int DIGEST_HEX_LENGTH = 64;
+
 	private static final char[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E',
 			'F' };
 
-	public static String digest(Long id, String location, String key) throws NoSuchAlgorithmException {
-		byte[] pattern = (id + location + key).getBytes();
-		MessageDigest digest = null;
+	/* Digesters which have been used and are free to be used again */
+	private static final Pool<Digester> pool = new Pool<>(64);
+
+	/**
+	 * Everything needed to compute one digest, kept for reuse as setting up a
+	 * MessageDigest and the buffers costs more than digesting a short string.
+	 */
+	static class Digester {
+		private final MessageDigest messageDigest;
+		/* Encodes as String.getBytes() would */
+		private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final StringBuilder text = new StringBuilder(128);
+		private CharBuffer chars = CharBuffer.allocate(128);
+		private ByteBuffer bytes = ByteBuffer.allocate(256);
+		private final byte[] hash;
+		private final char[] hexChars;
+
+		Digester() throws NoSuchAlgorithmException {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+			hash = new byte[messageDigest.getDigestLength()];
+			hexChars = new char[hash.length * 2];
+		}
+
+		/* Hash the text as encoded with the default charset */
+		private void hash(Long id, String location, String key) {
+			text.setLength(0);
+			if (id == null) {
+				text.append((Object) null);
+			} else {
+				text.append(id.longValue());
+			}
+			text.append(location).append(key);
+
+			int length = text.length();
+			if (chars.capacity() < length) {
+				chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+			}
+			text.getChars(0, length, chars.array(), 0);
+			chars.clear();
+			chars.limit(length);
+			encode();
+			finish(bytes.position());
+		}
+
+		/* Hash the text as encoded with UTF-8 without going through a String */
+		private void hashUtf8(long id, String location, String key) {
+			location = String.valueOf(location);
+			key = String.valueOf(key);
+			byte[] b = reserve(20 + 3 * (location.length() + key.length()));
+			int n = putDecimal(id, b, 0);
+			n = putUtf8(location, b, n);
+			n = putUtf8(key, b, n);
+			finish(n);
+		}
+
+		/* As hashUtf8 but with the key already encoded */
+		void hashUtf8(long id, String location, byte[] key) {
+			location = String.valueOf(location);
+			byte[] b = reserve(20 + 3 * location.length() + key.length);
+			int n = putDecimal(id, b, 0);
+			n = putUtf8(location, b, n);
+			System.arraycopy(key, 0, b, n, key.length);
+			finish(n + key.length);
+		}
+
+		/* Ensure that bytes can hold length bytes and return its array */
+		private byte[] reserve(int length) {
+			if (bytes.capacity() < length) {
+				bytes = ByteBuffer.allocate(Math.max(length, bytes.capacity() * 2));
+			}
+			return bytes.array();
+		}
+
+		char[] getHexChars() {
+			return hexChars;
+		}
+
+		byte[] getHash() {
+			return hash;
+		}
+
+		boolean matches(String expectedHex) {
+			return IcatSecurity.matches(hash, expectedHex);
+		}
 
-		digest = MessageDigest.getInstance("SHA-256");
+		private void finish(int length) {
+			messageDigest.update(bytes.array(), 0, length);
+			try {
+				messageDigest.digest(hash, 0, hash.length);
+			} catch (DigestException e) {
+				// Cannot happen as the array is the length of the digest
+				throw new IllegalStateException(e);
+			}
+			toHex(hash, hexChars);
+		}
 
-		byte[] bytes = digest.digest(pattern);
-		char[] hexChars = new char[bytes.length * 2];
+		/* Encode chars into bytes, enlarging bytes as necessary */
+		private void encode() {
+			encoder.reset();
+			bytes.clear();
+			while (true) {
+				CoderResult result = encoder.encode(chars, bytes, true);
+				if (result.isUnderflow()) {
+					result = encoder.flush(bytes);
+				}
+				if (result.isUnderflow()) {
+					return;
+				}
+				ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+				bytes.flip();
+				larger.put(bytes);
+				bytes = larger;
+			}
+		}
+	}
+
+	/* Write the hash as upper case hex digits */
+	static void toHex(byte[] hash, char[] hexChars) {
 		int v;
-		for (int j = 0; j < bytes.length; j++) {
-			v = bytes[j] & 0xFF;
+		for (int j = 0; j < hash.length; j++) {
+			v = hash[j] & 0xFF;
 			hexChars[j * 2] = HEX_CHARS[v >>> 4];
 			hexChars[j * 2 + 1] = HEX_CHARS[v & 0x0F];
 		}
-		return new String(hexChars);
 	}
 
-}
\ No newline at end of file
+	/*
+	 * Compare a hash with hex digits in either case, taking a time which
+	 * depends only on the length of expectedHex
+	 */
+	static boolean matches(byte[] hash, String expectedHex) {
+		if (expectedHex.length() != hash.length * 2) {
+			return false;
+		}
+		int diff = 0;
+		for (int j = 0; j < hash.length; j++) {
+			int v = hash[j] & 0xFF;
+			diff |= hexDigit(expectedHex.charAt(j * 2)) ^ (v >>> 4);
+			diff |= hexDigit(expectedHex.charAt(j * 2 + 1)) ^ (v & 0x0F);
+		}
+		return diff == 0;
+	}
+
+	/**
+	 * Write the decimal digits of a value as ASCII to b starting at n
+	 * 
+	 * @return the index after the last byte written
+	 */
+	static int putDecimal(long value, byte[] b, int n) {
+		if (value < 0) {
+			b[n++] = '-';
+		} else {
+			// Work with negative values so that Long.MIN_VALUE needs no special case
+			value = -value;
+		}
+		int start = n;
+		do {
+			b[n++] = (byte) ('0' - value % 10);
+			value /= 10;
+		} while (value != 0);
+		for (int i = start, j = n - 1; i < j; i++, j--) {
+			byte t = b[i];
+			b[i] = b[j];
+			b[j] = t;
+		}
+		return n;
+	}
+
+	/**
+	 * Write s in UTF-8 to b starting at n, replacing unpaired surrogates by '?'
+	 * as String.getBytes does.
+	 * 
+	 * @return the index after the last byte written
+	 */
+	static int putUtf8(String s, byte[] b, int n) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[n++] = (byte) c;
+			} else if (c < 0x800) {
+				b[n++] = (byte) (0xC0 | c >> 6);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[n++] = (byte) (0xF0 | cp >> 18);
+					b[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+					b[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+					b[n++] = (byte) (0x80 | cp & 0x3F);
+				} else {
+					b[n++] = '?';
+				}
+			} else {
+				b[n++] = (byte) (0xE0 | c >> 12);
+				b[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		return n;
+	}
+
+	/* The value of a hex digit or a value which matches no nibble */
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return 0x100;
+	}
+
+	static Digester acquire() throws NoSuchAlgorithmException {
+		Digester digester = pool.poll();
+		return digester == null ? new Digester() : digester;
+	}
+
+	static void release(Digester digester) {
+		pool.offer(digester);
+	}
+
+	/**
+	 * Compute the SHA-256 digest of the id, location and key concatenated and
+	 * encoded with the platform's default charset.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param key
+	 *            the secret key
+	 * 
+	 * @return the digest as 64 upper case hexadecimal characters
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public static String digest(Long id, String location, String key) throws NoSuchAlgorithmException {
+		Digester digester = acquire();
+		digester.hash(id, location, key);
+		String result = new String(digester.hexChars);
+		release(digester);
+		return result;
+	}
+
+	/**
+	 * Compute the SHA-256 digest of the decimal id, location and key
+	 * concatenated and encoded in UTF-8, writing it as
+	 * {@value #DIGEST_HEX_LENGTH} upper case hexadecimal characters to an
+	 * array. For ASCII locations and keys the result is the same as that of
+	 * {@link #digest(Long, String, String)}, but unlike that method it does
+	 * not depend on the platform's default charset and allocates nothing.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param key
+	 *            the secret key
+	 * @param dest
+	 *            array to receive the digest
+	 * @param offset
+	 *            index in dest of the first character of the digest
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public static void digest(long id, String location, String key, char[] dest, int offset)
+			throws NoSuchAlgorithmException {
+		if (offset < 0 || offset > dest.length - DIGEST_HEX_LENGTH) {
+			throw new IndexOutOfBoundsException("No room for digest at " + offset + " in " + dest.length);
+		}
+		Digester digester = acquire();
+		digester.hashUtf8(id, location, key);
+		System.arraycopy(digester.hexChars, 0, dest, offset, DIGEST_HEX_LENGTH);
+		release(digester);
+	}
+
+	/**
+	 * Compute the digest as for {@link #digest(long, String, String, char[], int)}
+	 * and append it to a StringBuilder.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param key
+	 *            the secret key
+	 * @param dest
+	 *            where to append the digest
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public static void digest(long id, String location, String key, StringBuilder dest)
+			throws NoSuchAlgorithmException {
+		Digester digester = acquire();
+		digester.hashUtf8(id, location, key);
+		dest.append(digester.hexChars);
+		release(digester);
+	}
+
+	/**
+	 * Compute the digest as for {@link #digest(long, String, String, char[], int)}
+	 * and put it into a buffer as ASCII bytes, advancing its position by
+	 * {@value #DIGEST_HEX_LENGTH}.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param key
+	 *            the secret key
+	 * @param dest
+	 *            where to put the digest
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public static void digest(long id, String location, String key, ByteBuffer dest)
+			throws NoSuchAlgorithmException {
+		if (dest.remaining() < DIGEST_HEX_LENGTH) {
+			throw new BufferOverflowException();
+		}
+		Digester digester = acquire();
+		digester.hashUtf8(id, location, key);
+		char[] hexChars = digester.hexChars;
+		for (int i = 0; i < DIGEST_HEX_LENGTH; i++) {
+			dest.put((byte) hexChars[i]);
+		}
+		release(digester);
+	}
+
+	/**
+	 * Check a digest as computed by
+	 * {@link #digest(long, String, String, char[], int)}. The comparison takes
+	 * the same time wherever the digests differ so that it reveals nothing
+	 * about the correct digest, and no hex string is created.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param key
+	 *            the secret key
+	 * @param expectedHex
+	 *            the digest to check in upper or lower case
+	 * 
+	 * @return true if expectedHex is the digest of the id, location and key
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public static boolean verify(long id, String location, String key, String expectedHex)
+			throws NoSuchAlgorithmException {
+		Digester digester = acquire();
+		digester.hashUtf8(id, location, key);
+		boolean result = digester.matches(expectedHex);
+		release(digester);
+		return result;
+	}
+
+	/**
+	 * Check many digests, all made with the same key, as for
+	 * {@link #verify(long, String, String, String)}.
+	 * 
+	 * @param ids
+	 *            the ids
+	 * @param locations
+	 *            the locations, at least as many as ids
+	 * @param key
+	 *            the secret key
+	 * @param expectedHex
+	 *            the digests to check, at least as many as ids
+	 * @param parallel
+	 *            if true split the work across the common fork/join pool
+	 * 
+	 * @return a BitSet with bit i set if expectedHex[i] is the digest of ids[i]
+	 *         and locations[i]
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public static BitSet verifyAll(long[] ids, String[] locations, String key, String[] expectedHex,
+			boolean parallel) throws NoSuchAlgorithmException {
+		return new KeyedDigester(key).verifyAll(ids, locations, expectedHex, parallel);
+	}
+
+}
@@ -1,5 +1,15 @@
 package org.icatproject.utils;
 
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
 import javax.measure.IncommensurableException;
 import javax.measure.UnconvertibleException;
 import javax.measure.Unit;
@@ -7,12 +17,442 @@ import javax.measure.UnitConverter;
 import javax.measure.format.MeasurementParseException;
 
 import tech.units.indriya.format.SimpleUnitFormat;
+import tech.units.indriya.function.AddConverter;
 
 /**
  * Utility to perform conversions to SI (System) units.
+ * 
+ * The result of parsing each distinct units string, including failure to
+ * parse, is cached so that repeated conversions do not parse again. Units
+ * strings which cannot be converted are remembered separately from those which
+ * can, so that free text in the units does not push useful conversions out of
+ * the cache, and strings which the parser would certainly reject, such as
+ * blank strings or several words, are recognised without calling the parser
+ * at all.
+ * 
+ * An instance is immutable once constructed: aliases can only be defined by
+ * the constructors or by a {@link Builder}. It is therefore safe to share one
+ * instance between any number of threads. Aliases are resolved when the
+ * instance is built, so looking them up involves neither locking nor the
+ * parser.
  */
 public class IcatUnits {
 
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+
+	/**
+	 * Builds an IcatUnits instance. A Builder is not thread safe but the
+	 * IcatUnits it builds is.
+	 */
+	public static class Builder {
+
+		private static class Alias {
+			private final String symbol;
+			private final String alias;
+			private final Double factor;
+
+			private Alias(String symbol, String alias, Double factor) {
+				this.symbol = symbol;
+				this.alias = alias;
+				this.factor = factor;
+			}
+		}
+
+		private final List<Alias> aliases = new ArrayList<>();
+		private int cacheSize = DEFAULT_CACHE_SIZE;
+		private int unconvertibleCacheSize = DEFAULT_CACHE_SIZE;
+		private final List<String> warmUp = new ArrayList<>();
+		private boolean canonicalise;
+		private final Map<String, String> synonyms = new HashMap<>();
+
+		/**
+		 * Add aliases as described for {@link IcatUnits#IcatUnits(String)}
+		 * 
+		 * @param aliasOptions String with the format
+		 *                     <code>symbolA: aliasA1, aliasA2 factorA2; symbolB: aliasB1 ...</code>
+		 * @return this Builder
+		 */
+		public Builder aliases(String aliasOptions) {
+			int end = aliasOptions.length();
+			int start = 0;
+			while (start < end) {
+				int semicolon = aliasOptions.indexOf(';', start);
+				int unitEnd = semicolon < 0 ? end : semicolon;
+				int colon = aliasOptions.indexOf(':', start);
+				if (colon < 0 || colon > unitEnd) {
+					if (!aliasOptions.substring(start, unitEnd).trim().isEmpty()) {
+						throw new IllegalArgumentException("No ':' after symbol in aliases: " + aliasOptions);
+					}
+				} else {
+					String symbol = aliasOptions.substring(start, colon).trim();
+					int aliasStart = colon + 1;
+					while (aliasStart <= unitEnd) {
+						int comma = aliasOptions.indexOf(',', aliasStart);
+						int aliasEnd = comma < 0 || comma > unitEnd ? unitEnd : comma;
+						addAlias(symbol, aliasOptions, aliasStart, aliasEnd);
+						aliasStart = aliasEnd + 1;
+					}
+				}
+				start = unitEnd + 1;
+			}
+			return this;
+		}
+
+		/* Add the alias, with an optional factor after it, between start and end */
+		private void addAlias(String symbol, String aliasOptions, int start, int end) {
+			while (start < end && Character.isWhitespace(aliasOptions.charAt(start))) {
+				start++;
+			}
+			int aliasEnd = start;
+			while (aliasEnd < end && !Character.isWhitespace(aliasOptions.charAt(aliasEnd))) {
+				aliasEnd++;
+			}
+			if (aliasEnd == start) {
+				return;
+			}
+			String alias = aliasOptions.substring(start, aliasEnd);
+			String factor = aliasOptions.substring(aliasEnd, end).trim();
+			// As before, a factor is only taken from exactly one further token
+			if (factor.isEmpty() || factor.chars().anyMatch(Character::isWhitespace)) {
+				alias(symbol, alias);
+			} else {
+				alias(symbol, alias, Double.parseDouble(factor));
+			}
+		}
+
+		/**
+		 * Add an alias for a unit
+		 * 
+		 * @param symbol The Indriya symbol of the unit.
+		 * @param alias  The alias.
+		 * @return this Builder
+		 */
+		public Builder alias(String symbol, String alias) {
+			aliases.add(new Alias(symbol, alias, null));
+			return this;
+		}
+
+		/**
+		 * Add an alias for a multiple of a unit
+		 * 
+		 * @param symbol The Indriya symbol of the unit.
+		 * @param alias  The alias.
+		 * @param factor The value of one alias in units of symbol.
+		 * @return this Builder
+		 */
+		public Builder alias(String symbol, String alias, double factor) {
+			aliases.add(new Alias(symbol, alias, factor));
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of distinct units strings, other than aliases,
+		 * for which the result of parsing is remembered. The default is 1000.
+		 * 
+		 * @param cacheSize A positive number of units strings.
+		 * @return this Builder
+		 */
+		public Builder cacheSize(int cacheSize) {
+			if (cacheSize <= 0) {
+				throw new IllegalArgumentException("Cache size must be positive: " + cacheSize);
+			}
+			this.cacheSize = cacheSize;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of distinct units strings which could not be
+		 * converted for which that result is remembered. The default is 1000.
+		 * 
+		 * @param unconvertibleCacheSize A positive number of units strings.
+		 * @return this Builder
+		 */
+		public Builder unconvertibleCacheSize(int unconvertibleCacheSize) {
+			if (unconvertibleCacheSize <= 0) {
+				throw new IllegalArgumentException("Cache size must be positive: " + unconvertibleCacheSize);
+			}
+			this.unconvertibleCacheSize = unconvertibleCacheSize;
+			return this;
+		}
+
+		/**
+		 * Normalise units strings before they are looked up, so that different
+		 * spellings of the same units share one cache entry. Leading and
+		 * trailing whitespace and whitespace next to an operator are removed,
+		 * other runs of whitespace become a single space, and the common names
+		 * of the SI base and derived units, such as "kelvin", "Celsius",
+		 * "degC" and "metres", are replaced by their symbols. Names are
+		 * matched ignoring case but symbols are not, as "mK" and "MK" are
+		 * different units.
+		 * 
+		 * @return this Builder
+		 */
+		public Builder canonicalise() {
+			canonicalise = true;
+			for (Map.Entry<String, String> entry : STANDARD_SYNONYMS.entrySet()) {
+				synonyms.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+			return this;
+		}
+
+		/**
+		 * Add a spelling which is to be replaced by a units string before it is
+		 * looked up. Unlike an alias this does not define a new unit for the
+		 * parser, so prefixes are not applied to it, but it is matched ignoring
+		 * case and shares its cache entry with the units it stands for.
+		 * 
+		 * @param units    The units string to use.
+		 * @param spelling Another way of writing it.
+		 * @return this Builder
+		 */
+		public Builder synonym(String units, String spelling) {
+			synonyms.put(spelling.toLowerCase(Locale.ROOT), units);
+			return this;
+		}
+
+		/**
+		 * Add units strings to be parsed and cached when the IcatUnits is
+		 * built, so that the first conversions in those units, and the first
+		 * use of the parser, do not hold up the caller. This is worthwhile for
+		 * the units which are known to be common in the data, up to the size
+		 * of the cache.
+		 * 
+		 * @param units Units strings to resolve in advance.
+		 * @return this Builder
+		 */
+		public Builder warmUp(String... units) {
+			Collections.addAll(warmUp, units);
+			return this;
+		}
+
+		/**
+		 * Build the IcatUnits
+		 * 
+		 * @return A new IcatUnits which may be shared between threads.
+		 * @throws MeasurementParseException If the symbol of an alias is not understood.
+		 */
+		public IcatUnits build() {
+			return new IcatUnits(this);
+		}
+	}
+
+	/**
+	 * Converts values in one particular units string to SI units. Obtain one
+	 * from {@link IcatUnits#converterFor(String)} and keep it for as long as
+	 * values in the same units are to be converted.
+	 * 
+	 * Converters which are a combination of scaling and offset, which covers
+	 * all units with a metric prefix and temperature scales such as Celsius,
+	 * are reduced to a multiplier, a divisor and an offset so that
+	 * {@link #toSi(double)} is plain arithmetic which neither allocates nor
+	 * throws. Scaling by the reciprocal of an integer, as for "m" or "n", is
+	 * done by division by that integer, so that for example 5 mK gives exactly
+	 * the double nearest to 0.005 K. Results agree with those of the Indriya
+	 * converter to within the last bit. The Indriya converter itself is kept
+	 * for {@link IcatUnits#convertValueToSiUnits(double, String)}, whose
+	 * results must not change.
+	 * 
+	 * An SiConverter is immutable and may be shared between threads.
+	 */
+	public static final class SiConverter {
+		/* Larger doubles are all integers but are not then exact reciprocals */
+		private static final double MAX_EXACT_DIVISOR = 1L << 53;
+
+		/* Arrays shorter than this are never split across threads */
+		private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+		private final String siUnit;
+		/* The Indriya converter or null if not convertible */
+		private final UnitConverter converter;
+		/* Whether the arithmetic below may be used instead of the converter */
+		private final boolean affine;
+		private final double multiplier;
+		private final double divisor;
+		private final double offset;
+
+		private SiConverter(String siUnit, UnitConverter converter, boolean affine, double multiplier,
+				double divisor, double offset) {
+			this.siUnit = siUnit;
+			this.converter = converter;
+			this.affine = affine;
+			this.multiplier = multiplier;
+			this.divisor = divisor;
+			this.offset = offset;
+		}
+
+		private static SiConverter of(String siUnit, UnitConverter converter) {
+			double multiplier = 1.;
+			double divisor = 1.;
+			double offset = 0.;
+			List<? extends UnitConverter> steps = converter.getConversionSteps();
+			// The last step is applied first
+			for (int i = steps.size() - 1; i >= 0; i--) {
+				UnitConverter step = steps.get(i);
+				if (step.isLinear()) {
+					double factor = step.convert(1.);
+					double inverse = step.inverse().convert(1.);
+					if (Math.abs(inverse) > 1. && Math.abs(inverse) <= MAX_EXACT_DIVISOR && inverse == Math.rint(inverse)) {
+						divisor *= inverse;
+						offset /= inverse;
+					} else {
+						multiplier *= factor;
+						offset *= factor;
+					}
+				} else if (step instanceof AddConverter) {
+					offset += step.convert(0.);
+				} else {
+					// Not affine, e.g. logarithmic, so use the converter itself
+					return new SiConverter(siUnit, converter, false, Double.NaN, Double.NaN, Double.NaN);
+				}
+			}
+			return new SiConverter(siUnit, converter, true, multiplier, divisor, offset);
+		}
+
+		/**
+		 * @return true unless the units could not be converted, in which case
+		 *         {@link #toSi(double)} returns NaN and {@link #getSiUnit()}
+		 *         null.
+		 */
+		public boolean isConvertible() {
+			return siUnit != null;
+		}
+
+		/**
+		 * @return The name of the SI unit, for example "Kelvin", or null if the
+		 *         units could not be converted.
+		 */
+		public String getSiUnit() {
+			return siUnit;
+		}
+
+		/**
+		 * Convert a value to SI units.
+		 * 
+		 * @param value Numerical value in the units this converter was created
+		 *              for.
+		 * @return The value in SI units or NaN if the units could not be
+		 *         converted.
+		 */
+		public double toSi(double value) {
+			if (!affine) {
+				return converter == null ? Double.NaN : converter.convert(value);
+			}
+			return value * multiplier / divisor + offset;
+		}
+
+		/* Convert a value exactly as the Indriya converter does */
+		private double toSiExact(double value) {
+			return converter == null ? Double.NaN : converter.convert(value);
+		}
+
+		/**
+		 * Convert an array of values to SI units.
+		 * 
+		 * @param values Values in the units this converter was created for.
+		 * @param dest   Array to receive the values in SI units, which may be
+		 *               values itself to convert in place. It must be at least
+		 *               as long as values.
+		 */
+		public void toSi(double[] values, double[] dest) {
+			toSi(values, dest, false);
+		}
+
+		/**
+		 * Convert an array of values to SI units.
+		 * 
+		 * @param values   Values in the units this converter was created for.
+		 * @param dest     Array to receive the values in SI units, which may be
+		 *                 values itself to convert in place. It must be at least
+		 *                 as long as values.
+		 * @param parallel If true a large array is split across the common
+		 *                 fork/join pool.
+		 */
+		public void toSi(double[] values, double[] dest, boolean parallel) {
+			int length = values.length;
+			if (dest.length < length) {
+				throw new IllegalArgumentException("Destination has " + dest.length + " elements but " + length
+						+ " are needed");
+			}
+			if (parallel && length >= PARALLEL_THRESHOLD) {
+				int chunks = (length + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD;
+				IntStream.range(0, chunks).parallel().forEach(c -> toSi(values, dest, c * PARALLEL_THRESHOLD,
+						Math.min(length, (c + 1) * PARALLEL_THRESHOLD)));
+			} else {
+				toSi(values, dest, 0, length);
+			}
+		}
+
+		/**
+		 * Convert the values between the position and the limit of a buffer
+		 * to SI units in place. The position of the buffer is not changed.
+		 * 
+		 * @param values Values in the units this converter was created for.
+		 */
+		public void toSi(DoubleBuffer values) {
+			if (values.hasArray() && !values.isReadOnly()) {
+				double[] array = values.array();
+				int from = values.arrayOffset() + values.position();
+				toSi(array, array, from, from + values.remaining());
+			} else {
+				for (int i = values.position(); i < values.limit(); i++) {
+					values.put(i, toSi(values.get(i)));
+				}
+			}
+		}
+
+		private void toSi(double[] values, double[] dest, int from, int to) {
+			if (!affine) {
+				for (int i = from; i < to; i++) {
+					dest[i] = toSiExact(values[i]);
+				}
+			} else {
+				// Keep the loop simple so that the JIT can vectorise it
+				double m = multiplier;
+				double d = divisor;
+				double o = offset;
+				for (int i = from; i < to; i++) {
+					dest[i] = values[i] * m / d + o;
+				}
+			}
+		}
+	}
+
+	/* Names of units, in lower case, which canonicalisation replaces by symbols */
+	static final Map<String, String> STANDARD_SYNONYMS = new HashMap<>();
+
+	static {
+		addSynonyms("\u2103", "celsius", "degrees celsius", "degree celsius", "deg c", "degc", "\u00b0c",
+				"centigrade");
+		addSynonyms("K", "kelvin", "kelvins", "degrees kelvin", "deg k", "degk", "\u00b0k");
+		addSynonyms("m", "metre", "metres", "meter", "meters");
+		addSynonyms("s", "second", "seconds", "sec", "secs");
+		addSynonyms("min", "minute", "minutes");
+		addSynonyms("h", "hour", "hours", "hr", "hrs");
+		addSynonyms("g", "gram", "grams");
+		addSynonyms("kg", "kilogram", "kilograms");
+		addSynonyms("A", "ampere", "amperes", "amp", "amps");
+		addSynonyms("mol", "mole", "moles");
+		addSynonyms("rad", "radian", "radians");
+		addSynonyms("Hz", "hertz");
+		addSynonyms("N", "newton", "newtons");
+		addSynonyms("Pa", "pascal", "pascals");
+		addSynonyms("J", "joule", "joules");
+		addSynonyms("W", "watt", "watts");
+		addSynonyms("V", "volt", "volts");
+		addSynonyms("\u03a9", "ohm", "ohms");
+		addSynonyms("T", "tesla");
+	}
+
+	private static void addSynonyms(String symbol, String... names) {
+		for (String name : names) {
+			STANDARD_SYNONYMS.put(name, symbol);
+		}
+	}
+
+	/** Returned for units strings which cannot be converted */
+	private static final SiConverter NOT_CONVERTIBLE = new SiConverter(null, null, false, Double.NaN,
+			Double.NaN, Double.NaN);
+
 	/**
 	 * Holds the numerical value and SI units for a quantity.
 	 */
@@ -34,10 +474,22 @@ public class IcatUnits {
 
 	private final SimpleUnitFormat unitFormat = SimpleUnitFormat.getNewInstance();
 
+	/* Conversions for the aliases, fixed when the instance is built */
+	private final Map<String, SiConverter> precompiled;
+
+	private final boolean canonicalise;
+	private final Map<String, String> synonyms;
+
+	private final ClockCache<String, SiConverter> conversions;
+
+	/* Units strings which were parsed but could not be converted */
+	private final ClockCache<String, SiConverter> unconvertible;
+
 	/**
 	 * Creates instance with any aliasing.
 	 */
 	public IcatUnits() {
+		this(new Builder());
 	}
 
 	/**
@@ -58,30 +510,251 @@ public class IcatUnits {
 	 *                     <code>symbolA: aliasA1, aliasA2 factorA2; symbolB: aliasB1 ...</code>
 	 */
 	public IcatUnits(String aliasOptions) {
-		if (!aliasOptions.equals("")) {
-			for (String unitAliases : aliasOptions.split(";")) {
-				String[] splitUnitAliases = unitAliases.split(":");
-				Unit<?> unit = unitFormat.parse(splitUnitAliases[0].trim());
-				for (String alias : splitUnitAliases[1].trim().split(",")) {
-					String[] aliasSplit = alias.trim().split("\\s+");
-					if (aliasSplit.length == 2) {
-						unitFormat.alias(unit.multiply(Double.parseDouble(aliasSplit[1])), aliasSplit[0]);
-					} else {
-						unitFormat.alias(unit, aliasSplit[0]);
-					}
-				}
+		this(new Builder().aliases(aliasOptions));
+	}
+
+	private IcatUnits(Builder builder) {
+		for (Builder.Alias alias : builder.aliases) {
+			Unit<?> unit = unitFormat.parse(alias.symbol);
+			if (alias.factor != null) {
+				unit = unit.multiply(alias.factor);
 			}
+			unitFormat.alias(unit, alias.alias);
+		}
+
+		Map<String, SiConverter> precompiled = new HashMap<>();
+		for (Builder.Alias alias : builder.aliases) {
+			precompiled.put(alias.alias, resolve(alias.alias));
+		}
+		this.precompiled = Collections.unmodifiableMap(precompiled);
+		canonicalise = builder.canonicalise;
+		synonyms = Collections.unmodifiableMap(new HashMap<>(builder.synonyms));
+		conversions = new ClockCache<>(builder.cacheSize);
+		unconvertible = new ClockCache<>(builder.unconvertibleCacheSize);
+		warmUp(builder.warmUp);
+	}
+
+	/**
+	 * Parse and cache units strings now so that later conversions in those
+	 * units find them in the cache. Aliases are always resolved when the
+	 * instance is built so need not be included.
+	 * 
+	 * @param units Units strings to resolve in advance.
+	 */
+	public void warmUp(Collection<String> units) {
+		for (String u : units) {
+			converterFor(u);
 		}
 	}
 
 	/**
-	 * Converts a value into SI units.
+	 * Converts a value into SI units. The value is converted by Indriya, as it
+	 * always has been, so may differ in the last bit from the result of
+	 * {@link SiConverter#toSi(double)}.
 	 * 
 	 * @param numericalValue Numerical value of a quantity associated with a unit.
 	 * @param units          Units of the quantity.
 	 * @return Either an instance of Value, or null if the units could not be converted.
 	 */
 	public Value convertValueToSiUnits(double numericalValue, String units) {
+		SiConverter converter = converterFor(units);
+		if (!converter.isConvertible()) {
+			return null;
+		}
+		return new Value(converter.toSiExact(numericalValue), converter.getSiUnit());
+	}
+
+	/**
+	 * Converts an array of values, all in the same units, into SI units in
+	 * place. The units are looked up once for the whole array.
+	 * 
+	 * @param values Numerical values of quantities associated with units.
+	 * @param units  Units of the quantities.
+	 * @return The name of the SI units or null, in which case the values are
+	 *         unchanged, if the units could not be converted.
+	 */
+	public String convertValuesToSiUnits(double[] values, String units) {
+		return convertValuesToSiUnits(values, values, units, false);
+	}
+
+	/**
+	 * Converts an array of values, all in the same units, into SI units. The
+	 * units are looked up once for the whole array.
+	 * 
+	 * @param values   Numerical values of quantities associated with units.
+	 * @param dest     Array to receive the converted values, at least as long
+	 *                 as values. It may be values itself.
+	 * @param units    Units of the quantities.
+	 * @param parallel If true a large array is split across the common
+	 *                 fork/join pool.
+	 * @return The name of the SI units or null, in which case dest is
+	 *         unchanged, if the units could not be converted.
+	 */
+	public String convertValuesToSiUnits(double[] values, double[] dest, String units, boolean parallel) {
+		SiConverter converter = converterFor(units);
+		if (!converter.isConvertible()) {
+			return null;
+		}
+		converter.toSi(values, dest, parallel);
+		return converter.getSiUnit();
+	}
+
+	/**
+	 * Converts the values between the position and the limit of a buffer, all
+	 * in the same units, into SI units in place. The units are looked up once
+	 * for the whole buffer.
+	 * 
+	 * @param values Numerical values of quantities associated with units.
+	 * @param units  Units of the quantities.
+	 * @return The name of the SI units or null, in which case the values are
+	 *         unchanged, if the units could not be converted.
+	 */
+	public String convertValuesToSiUnits(DoubleBuffer values, String units) {
+		SiConverter converter = converterFor(units);
+		if (!converter.isConvertible()) {
+			return null;
+		}
+		converter.toSi(values);
+		return converter.getSiUnit();
+	}
+
+	/**
+	 * Get a converter from the specified units to SI units. This is the
+	 * cheapest way to convert many values in the same units as the units
+	 * string is only looked up once and each conversion allocates nothing.
+	 * 
+	 * @param units Units of the quantities to be converted.
+	 * @return A converter, which will report that it is not convertible if the
+	 *         units could not be understood. It is never null.
+	 */
+	public SiConverter converterFor(String units) {
+		SiConverter converter = precompiled.get(units);
+		if (converter != null) {
+			return converter;
+		}
+		converter = conversions.get(units);
+		if (converter != null) {
+			return converter;
+		}
+
+		// Another spelling of the same units may already be known
+		String canonical = canonical(units);
+		if (canonical != units) {
+			converter = precompiled.get(canonical);
+			if (converter == null) {
+				converter = conversions.get(canonical);
+			}
+			if (converter != null) {
+				conversions.put(units, converter);
+				return converter;
+			}
+		}
+
+		if (cannotParse(canonical) || unconvertible.get(units) != null) {
+			return NOT_CONVERTIBLE;
+		}
+		converter = resolve(canonical);
+		if (converter.isConvertible()) {
+			conversions.put(canonical, converter);
+			conversions.put(units, converter);
+		} else {
+			unconvertible.put(units, converter);
+		}
+		return converter;
+	}
+
+	/**
+	 * @return the canonical form of the units string, which is the same
+	 *         instance if canonicalisation makes no difference.
+	 */
+	private String canonical(String units) {
+		String result = canonicalise ? normaliseWhitespace(units) : units;
+		if (!synonyms.isEmpty()) {
+			String synonym = synonyms.get(result.toLowerCase(Locale.ROOT));
+			if (synonym != null) {
+				result = synonym;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove whitespace which the parser ignores, which is at either end or
+	 * next to an operator, and reduce any other whitespace to a single space.
+	 */
+	private static String normaliseWhitespace(String units) {
+		StringBuilder sb = new StringBuilder(units.length());
+		boolean afterSpace = false;
+		for (int i = 0; i < units.length(); i++) {
+			char c = units.charAt(i);
+			if (Character.isWhitespace(c)) {
+				afterSpace = true;
+			} else {
+				if (afterSpace && sb.length() > 0 && !isOperator(c) && !isOperator(sb.charAt(sb.length() - 1))) {
+					sb.append(' ');
+				}
+				sb.append(c);
+				afterSpace = false;
+			}
+		}
+		return units.contentEquals(sb) ? units : sb.toString();
+	}
+
+	/**
+	 * Recognise units strings which are certain to be rejected by the parser,
+	 * or to parse as the dimensionless unit one, without paying for the
+	 * exception. This errs on the side of letting strings through to the
+	 * parser.
+	 * 
+	 * @return true if the string is blank or has whitespace between two
+	 *         characters which are not operators, as in "arbitrary units" or
+	 *         "m s", since the parser requires an operator between each pair
+	 *         of symbols or numbers.
+	 */
+	private static boolean cannotParse(String units) {
+		boolean blank = true;
+		boolean afterOperand = false;
+		boolean afterSpace = false;
+		for (int i = 0; i < units.length(); i++) {
+			char c = units.charAt(i);
+			if (Character.isWhitespace(c)) {
+				afterSpace = true;
+			} else {
+				boolean operand = !isOperator(c);
+				if (operand && afterOperand && afterSpace) {
+					return true;
+				}
+				afterOperand = operand;
+				afterSpace = false;
+				blank = false;
+			}
+		}
+		return blank;
+	}
+
+	private static boolean isOperator(char c) {
+		switch (c) {
+		case '\u00b7': // middle dot
+		case '*':
+		case '/':
+		case '^':
+		case ':':
+		case '+':
+		case '-':
+		case '(':
+		case ')':
+		case '[':
+		case ']':
+		case '\u00b9': // superscript one
+		case '\u00b2': // superscript two
+		case '\u00b3': // superscript three
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private SiConverter resolve(String units) {
 		try {
 			Unit<?> unit = unitFormat.parse(units);
 			Unit<?> systemUnit = unit.getSystemUnit();
@@ -90,14 +763,13 @@ public class IcatUnits {
 				// String may be a valid compound unit, but not convert to an SI unit
 				// For example, N/A is (ironically) netwons per ampere but will break icat.lucene which expects
 				// value.units to be a non-null String. Returning null in place of Value is safe.
-				return null;
+				return NOT_CONVERTIBLE;
 			}
-			UnitConverter converter = unit.getConverterToAny(systemUnit);
-			double convertedValue = converter.convert(numericalValue);
-			return new Value(convertedValue, convertedUnits);
+			// Share one string per SI unit between all the Values produced
+			return SiConverter.of(convertedUnits.intern(), unit.getConverterToAny(systemUnit));
 		} catch (MeasurementParseException | UnconvertibleException | IncommensurableException e) {
 			// If the units can't be parsed, or the value converted, then just return null
-			return null;
+			return NOT_CONVERTIBLE;
 		}
 	}
 
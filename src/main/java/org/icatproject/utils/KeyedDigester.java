@@ -0,0 +1,429 @@
+package org.icatproject.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes and checks digests of (id, location) pairs for one secret key,
+ * doing the work which depends only on the key once, when the KeyedDigester
+ * is created, rather than for every digest. An instance may be shared between
+ * threads.
+ * 
+ * With {@link Algorithm#SHA256} the digests are the same as those of
+ * {@link IcatSecurity#digest(long, String, String, char[], int)}: the key is
+ * encoded once and appended to each id and location. With
+ * {@link Algorithm#HMAC_SHA256} the digest is an HMAC of the id, as eight
+ * bytes in network byte order, followed by the location in UTF-8. The Mac is
+ * initialised with the key once and copies of it, which carry the hashed key
+ * pads, are reused.
+ * 
+ * Digests may optionally be cached, see {@link #setCacheSize(int)}.
+ */
+public class KeyedDigester {
+
+	/** The ways of combining the key with the id and location */
+	public enum Algorithm {
+		/** SHA-256 of the id, location and key concatenated */
+		SHA256,
+		/** HMAC-SHA256 of the id and location with the key */
+		HMAC_SHA256
+	}
+
+	/** Everything needed by one thread to compute digests */
+	private interface Hasher {
+		/** Compute the digest, leaving it in the hash and hex characters */
+		void hash(long id, String location);
+
+		char[] getHexChars();
+
+		byte[] getHash();
+	}
+
+	/** The key of a cached digest */
+	private static final class CacheKey {
+		private final long id;
+		private final String location;
+
+		private CacheKey(long id, String location) {
+			this.id = id;
+			this.location = location;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) obj;
+			return id == other.id && Objects.equals(location, other.location);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(id) * 31 + Objects.hashCode(location);
+		}
+	}
+
+	private class ShaHasher implements Hasher {
+		private final IcatSecurity.Digester digester = new IcatSecurity.Digester();
+
+		private ShaHasher() throws NoSuchAlgorithmException {
+		}
+
+		@Override
+		public void hash(long id, String location) {
+			digester.hashUtf8(id, location, encodedKey);
+		}
+
+		@Override
+		public char[] getHexChars() {
+			return digester.getHexChars();
+		}
+
+		@Override
+		public byte[] getHash() {
+			return digester.getHash();
+		}
+	}
+
+	private static class MacHasher implements Hasher {
+		private final Mac mac;
+		private byte[] bytes = new byte[256];
+		private final byte[] hash;
+		private final char[] hexChars;
+
+		private MacHasher(Mac mac) {
+			this.mac = mac;
+			hash = new byte[mac.getMacLength()];
+			hexChars = new char[hash.length * 2];
+		}
+
+		@Override
+		public void hash(long id, String location) {
+			location = String.valueOf(location);
+			int maxLength = 8 + 3 * location.length();
+			if (bytes.length < maxLength) {
+				bytes = new byte[Math.max(maxLength, bytes.length * 2)];
+			}
+			for (int i = 0; i < 8; i++) {
+				bytes[i] = (byte) (id >>> (56 - 8 * i));
+			}
+			int n = IcatSecurity.putUtf8(location, bytes, 8);
+			mac.update(bytes, 0, n);
+			try {
+				mac.doFinal(hash, 0);
+			} catch (ShortBufferException e) {
+				// Cannot happen as the array is the length of the MAC
+				throw new IllegalStateException(e);
+			}
+			IcatSecurity.toHex(hash, hexChars);
+		}
+
+		@Override
+		public char[] getHexChars() {
+			return hexChars;
+		}
+
+		@Override
+		public byte[] getHash() {
+			return hash;
+		}
+	}
+
+	private final Algorithm algorithm;
+	private final byte[] encodedKey;
+	private final Mac prototype;
+	private final SecretKeySpec keySpec;
+	private final Pool<Hasher> pool = new Pool<>(64);
+
+	/* Hashes of recently used ids and locations or null if caching is off */
+	private volatile ClockCache<CacheKey, byte[]> cache;
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+
+	/**
+	 * Create a KeyedDigester producing the same digests as
+	 * {@link IcatSecurity#digest(long, String, String, char[], int)}
+	 * 
+	 * @param key
+	 *            the secret key
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if SHA-256 is not available
+	 */
+	public KeyedDigester(String key) throws NoSuchAlgorithmException {
+		algorithm = Algorithm.SHA256;
+		encodedKey = String.valueOf(key).getBytes(StandardCharsets.UTF_8);
+		prototype = null;
+		keySpec = null;
+		pool.offer(new ShaHasher());
+	}
+
+	/**
+	 * Create a KeyedDigester
+	 * 
+	 * @param key
+	 *            the secret key, which must not be empty for HMAC_SHA256
+	 * @param algorithm
+	 *            how to combine the key with the id and location
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if the algorithm is not available
+	 * @throws InvalidKeyException
+	 *             if the key is not suitable for the algorithm
+	 */
+	public KeyedDigester(String key, Algorithm algorithm) throws NoSuchAlgorithmException, InvalidKeyException {
+		this.algorithm = algorithm;
+		encodedKey = String.valueOf(key).getBytes(StandardCharsets.UTF_8);
+		if (algorithm == Algorithm.HMAC_SHA256) {
+			keySpec = new SecretKeySpec(encodedKey, "HmacSHA256");
+			prototype = Mac.getInstance("HmacSHA256");
+			prototype.init(keySpec);
+			pool.offer(newHasher());
+		} else {
+			prototype = null;
+			keySpec = null;
+			pool.offer(new ShaHasher());
+		}
+	}
+
+	/**
+	 * @return how the key is combined with the id and location
+	 */
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	private Hasher newHasher() throws NoSuchAlgorithmException {
+		if (algorithm == Algorithm.SHA256) {
+			return new ShaHasher();
+		}
+		try {
+			return new MacHasher((Mac) prototype.clone());
+		} catch (CloneNotSupportedException e) {
+			// Some providers cannot copy an initialised Mac
+			Mac mac = Mac.getInstance("HmacSHA256");
+			try {
+				mac.init(keySpec);
+			} catch (InvalidKeyException e1) {
+				// Cannot happen as the prototype accepted the key
+				throw new IllegalStateException(e1);
+			}
+			return new MacHasher(mac);
+		}
+	}
+
+	private Hasher acquire() {
+		Hasher hasher = pool.poll();
+		if (hasher != null) {
+			return hasher;
+		}
+		try {
+			return newHasher();
+		} catch (NoSuchAlgorithmException e) {
+			// Cannot happen as one has already been created
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Enable or disable caching of the digests computed by
+	 * {@link #digest(long, String)}, {@link #digest(long, String, StringBuilder)}
+	 * and {@link #verify(long, String, String)}. This is worthwhile when the
+	 * same files are signed or checked repeatedly as each repeat then costs a
+	 * hash lookup rather than a pass of the digest algorithm.
+	 * {@link #verifyAll(long[], String[], String[], boolean)} bypasses the
+	 * cache so as not to flush it with files which will not be seen again.
+	 * 
+	 * Setting the size discards any existing cache, including its hit and miss
+	 * counts.
+	 * 
+	 * @param size
+	 *            the maximum number of digests to remember or zero to disable
+	 *            the cache
+	 */
+	public synchronized void setCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Cache size cannot be negative: " + size);
+		}
+		cacheHits.reset();
+		cacheMisses.reset();
+		cache = size == 0 ? null : new ClockCache<>(size, cacheHits, cacheMisses);
+	}
+
+	/**
+	 * Get the number of digests found in the cache
+	 * 
+	 * @return the number of cache hits
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Get the number of digests which were not found in the cache
+	 * 
+	 * @return the number of cache misses
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * Forget any cached digests for an id, which must be done if the location
+	 * of the file it identifies changes. The cache is keyed by id and
+	 * location and the old location is not known here, so this scans the
+	 * whole cache, holding its lock, in time proportional to its size.
+	 * 
+	 * @param id
+	 *            the id
+	 */
+	public void invalidate(long id) {
+		ClockCache<CacheKey, byte[]> c = cache;
+		if (c != null) {
+			c.removeIf(k -> k.id == id);
+		}
+	}
+
+	/**
+	 * Forget all cached digests
+	 */
+	public void invalidateAll() {
+		ClockCache<CacheKey, byte[]> c = cache;
+		if (c != null) {
+			c.clear();
+		}
+	}
+
+	/**
+	 * Get the hash of an id and location from the cache or by computing it
+	 * with the hasher.
+	 * 
+	 * @return the hash, which must not be modified
+	 */
+	private byte[] hash(long id, String location, Hasher hasher) {
+		ClockCache<CacheKey, byte[]> c = cache;
+		if (c == null) {
+			hasher.hash(id, location);
+			return hasher.getHash();
+		}
+		CacheKey key = new CacheKey(id, location);
+		byte[] hash = c.get(key);
+		if (hash == null) {
+			hasher.hash(id, location);
+			hash = hasher.getHash();
+			c.put(key, hash.clone());
+		}
+		return hash;
+	}
+
+	/**
+	 * Compute a digest
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * 
+	 * @return the digest as 64 upper case hexadecimal characters
+	 */
+	public String digest(long id, String location) {
+		Hasher hasher = acquire();
+		char[] hexChars = hasher.getHexChars();
+		IcatSecurity.toHex(hash(id, location, hasher), hexChars);
+		String result = new String(hexChars);
+		pool.offer(hasher);
+		return result;
+	}
+
+	/**
+	 * Compute a digest and append it to a StringBuilder
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param dest
+	 *            where to append the 64 upper case hexadecimal characters
+	 */
+	public void digest(long id, String location, StringBuilder dest) {
+		Hasher hasher = acquire();
+		char[] hexChars = hasher.getHexChars();
+		IcatSecurity.toHex(hash(id, location, hasher), hexChars);
+		dest.append(hexChars);
+		pool.offer(hasher);
+	}
+
+	/**
+	 * Check a digest in a time which does not depend on where it differs
+	 * from the correct one
+	 * 
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location
+	 * @param expectedHex
+	 *            the digest to check in upper or lower case
+	 * 
+	 * @return true if expectedHex is the digest of the id and location
+	 */
+	public boolean verify(long id, String location, String expectedHex) {
+		Hasher hasher = acquire();
+		boolean result = IcatSecurity.matches(hash(id, location, hasher), expectedHex);
+		pool.offer(hasher);
+		return result;
+	}
+
+	/**
+	 * Check many digests as for {@link #verify(long, String, String)}
+	 * 
+	 * @param ids
+	 *            the ids
+	 * @param locations
+	 *            the locations, at least as many as ids
+	 * @param expectedHex
+	 *            the digests to check, at least as many as ids
+	 * @param parallel
+	 *            if true split the work across the common fork/join pool
+	 * 
+	 * @return a BitSet with bit i set if expectedHex[i] is the digest of ids[i]
+	 *         and locations[i]
+	 */
+	public BitSet verifyAll(long[] ids, String[] locations, String[] expectedHex, boolean parallel) {
+		int n = ids.length;
+		if (locations.length < n || expectedHex.length < n) {
+			throw new IllegalArgumentException("Fewer locations or digests than ids");
+		}
+
+		// Each task fills one word of the result using one Hasher
+		long[] words = new long[(n + 63) >>> 6];
+		IntStream tasks = IntStream.range(0, words.length);
+		if (parallel) {
+			tasks = tasks.parallel();
+		}
+		tasks.forEach(w -> {
+			Hasher hasher = acquire();
+			long word = 0;
+			int end = Math.min(n, (w + 1) << 6);
+			for (int i = w << 6; i < end; i++) {
+				hasher.hash(ids[i], locations[i]);
+				if (IcatSecurity.matches(hasher.getHash(), expectedHex[i])) {
+					word |= 1L << i;
+				}
+			}
+			words[w] = word;
+			pool.offer(hasher);
+		});
+		return BitSet.valueOf(words);
+	}
+
+}
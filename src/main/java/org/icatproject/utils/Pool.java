@@ -0,0 +1,55 @@
+package org.icatproject.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of objects which are expensive to set up, such as message
+ * digests and their buffers, so that they may be reused by any thread. A pool
+ * is used rather than a ThreadLocal so that nothing is left attached to the
+ * threads of an application server when this library is unloaded.
+ * 
+ * An object taken from the pool is used by one thread until it is returned.
+ */
+class Pool<T> {
+
+	private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int capacity;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of idle objects to keep
+	 */
+	Pool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return an idle object or null if there is none, in which case the
+	 *         caller should create one
+	 */
+	T poll() {
+		T t = queue.poll();
+		if (t != null) {
+			size.decrementAndGet();
+		}
+		return t;
+	}
+
+	/**
+	 * Return an object to the pool, or drop it if the pool is full
+	 * 
+	 * @param t
+	 *            an object which is no longer in use
+	 */
+	void offer(T t) {
+		if (size.incrementAndGet() <= capacity) {
+			queue.offer(t);
+		} else {
+			size.decrementAndGet();
+		}
+	}
+
+}
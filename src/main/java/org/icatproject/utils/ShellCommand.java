@@ -4,21 +4,307 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * A wrapper around ProcessBuilder to allow stdout and stderr to be kept
  * separate without risk of blocking. It throws no exceptions - it is the
  * responsibility of the caller to look at the exit code and at stderr and
  * stdout to see if it worked as expected.
+ * 
+ * The constructors run the command and wait for it to finish. The runAsync
+ * methods return at once with a future for the result. A {@link Builder}
+ * offers further options, such as a timeout or a pipeline of commands.
  */
 public class ShellCommand {
 
+	/**
+	 * Describes a command to be run with options not offered by the
+	 * constructors. A Builder may be used to run its command any number of
+	 * times.
+	 */
+	public static class Builder {
+		private final List<List<String>> stages = new ArrayList<>();
+		private Path home;
+		private InputStream inputStream;
+		private Path inputFile;
+		private long timeoutMillis;
+		private Consumer<String> stdoutLines;
+		private WritableByteChannel stdoutChannel;
+		private Consumer<String> stderrLines;
+		private WritableByteChannel stderrChannel;
+		private int captureLimit;
+		private Path spillDirectory;
+
+		/**
+		 * @param args
+		 *            argument
+		 */
+		public Builder(String... args) {
+			this(Arrays.asList(args));
+		}
+
+		/**
+		 * @param arglist
+		 *            list or arguments
+		 */
+		public Builder(List<String> arglist) {
+			stages.add(new ArrayList<>(arglist));
+		}
+
+		/**
+		 * Add a command to read the stdout of the previous one, as with
+		 * <code>|</code> in a shell. The data passes directly from one process
+		 * to the next and never through this JVM. Input goes to the first
+		 * command and stdout comes from the last, whose exit value is that of
+		 * the pipeline. The stderr of every command is kept, in the order of
+		 * the commands, but only that of the last is spilled to a file by
+		 * {@link #captureLimit(int, Path)}.
+		 * 
+		 * @param args
+		 *            argument
+		 * @return this Builder
+		 */
+		public Builder pipe(String... args) {
+			return pipe(Arrays.asList(args));
+		}
+
+		/**
+		 * Add a command to read the stdout of the previous one as for
+		 * {@link #pipe(String...)}
+		 * 
+		 * @param arglist
+		 *            list or arguments
+		 * @return this Builder
+		 */
+		public Builder pipe(List<String> arglist) {
+			stages.add(new ArrayList<>(arglist));
+			return this;
+		}
+
+		/**
+		 * @param home
+		 *            working directory to use
+		 * @return this Builder
+		 */
+		public Builder directory(Path home) {
+			this.home = home;
+			return this;
+		}
+
+		/**
+		 * @param inputStream
+		 *            stream for process to read from, which is read by another
+		 *            thread
+		 * @return this Builder
+		 */
+		public Builder input(InputStream inputStream) {
+			this.inputStream = inputStream;
+			inputFile = null;
+			return this;
+		}
+
+		/**
+		 * Connect the file directly to the stdin of the process, so that its
+		 * contents are not copied through this JVM
+		 * 
+		 * @param file
+		 *            file for process to read from
+		 * @return this Builder
+		 */
+		public Builder input(Path file) {
+			inputFile = file;
+			inputStream = null;
+			return this;
+		}
+
+		/**
+		 * Set the time the command may take. When it is up the process and
+		 * all its descendants are killed and the result reports
+		 * {@link ShellCommand#isTimedOut()} along with whatever output was
+		 * produced. A descendant which escapes being killed, for example by
+		 * detaching itself, may keep the output open and a process stuck in
+		 * uninterruptible I/O may not die at all; the result does not wait
+		 * more than a second after the killing and anything written later is
+		 * discarded. If the command is still alive then its exit value is
+		 * {@link ShellCommand#STILL_RUNNING}.
+		 * 
+		 * @param timeout
+		 *            the time allowed or zero, the default, for no limit
+		 * @param unit
+		 *            the unit of timeout
+		 * @return this Builder
+		 */
+		public Builder timeout(long timeout, TimeUnit unit) {
+			if (timeout < 0) {
+				throw new IllegalArgumentException("Timeout cannot be negative: " + timeout);
+			}
+			timeoutMillis = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Pass each line of stdout, without its line terminator, to a
+		 * consumer as soon as it is read rather than keeping stdout in
+		 * memory. The consumer is called from another thread. The result's
+		 * {@link ShellCommand#getStdout()} is then empty.
+		 * 
+		 * @param lines
+		 *            consumer of the lines
+		 * @return this Builder
+		 */
+		public Builder stdout(Consumer<String> lines) {
+			stdoutLines = lines;
+			stdoutChannel = null;
+			return this;
+		}
+
+		/**
+		 * Write stdout to a channel as soon as it is read rather than keeping
+		 * it in memory. The channel is written from another thread and is not
+		 * closed. The result's {@link ShellCommand#getStdout()} is then empty.
+		 * 
+		 * @param channel
+		 *            where to write stdout
+		 * @return this Builder
+		 */
+		public Builder stdout(WritableByteChannel channel) {
+			stdoutChannel = channel;
+			stdoutLines = null;
+			return this;
+		}
+
+		/**
+		 * Pass each line of stderr to a consumer as for
+		 * {@link #stdout(Consumer)}. In a pipeline the lines of different
+		 * commands may be passed concurrently. The result's
+		 * {@link ShellCommand#getStderr()} is then empty, so
+		 * {@link ShellCommand#isError()} only looks at the exit code.
+		 * 
+		 * @param lines
+		 *            consumer of the lines
+		 * @return this Builder
+		 */
+		public Builder stderr(Consumer<String> lines) {
+			stderrLines = lines;
+			stderrChannel = null;
+			return this;
+		}
+
+		/**
+		 * Write stderr to a channel as for {@link #stdout(WritableByteChannel)}.
+		 * In a pipeline the output of different commands may be interleaved.
+		 * The result's {@link ShellCommand#getStderr()} is then empty, so
+		 * {@link ShellCommand#isError()} only looks at the exit code.
+		 * 
+		 * @param channel
+		 *            where to write stderr
+		 * @return this Builder
+		 */
+		public Builder stderr(WritableByteChannel channel) {
+			stderrChannel = channel;
+			stderrLines = null;
+			return this;
+		}
+
+		/**
+		 * Keep at most the specified number of bytes of each of stdout and
+		 * stderr in memory. Beyond that only the first and last halves are
+		 * kept, separated by a line saying how many bytes were left out. The
+		 * halves are cut at byte offsets so a multi-byte character at either
+		 * cut may be lost.
+		 * 
+		 * @param maxBytes
+		 *            the limit or zero, the default, for none
+		 * @return this Builder
+		 */
+		public Builder captureLimit(int maxBytes) {
+			return captureLimit(maxBytes, null);
+		}
+
+		/**
+		 * Keep at most the specified number of bytes of each of stdout and
+		 * stderr in memory. As soon as the limit is passed the whole of the
+		 * stream is written to a new file in the spill directory, which the
+		 * caller must delete, and only the first part of it followed by a
+		 * line naming the file is kept in memory. If the command cannot be
+		 * run to completion, for example because its input fails, the file
+		 * is deleted. See
+		 * {@link ShellCommand#getStdoutFile()} and
+		 * {@link ShellCommand#getStderrFile()}.
+		 * 
+		 * @param maxBytes
+		 *            the limit or zero, the default, for none
+		 * @param spillDirectory
+		 *            where to write output beyond the limit, or null to keep
+		 *            the first and last parts of it in memory instead
+		 * @return this Builder
+		 */
+		public Builder captureLimit(int maxBytes, Path spillDirectory) {
+			if (maxBytes < 0) {
+				throw new IllegalArgumentException("Capture limit cannot be negative: " + maxBytes);
+			}
+			captureLimit = maxBytes;
+			this.spillDirectory = spillDirectory;
+			return this;
+		}
+
+		/* How to read one of the output streams, only spilling the last one */
+		private StreamReader reader(InputStream is, Consumer<String> lines, WritableByteChannel channel,
+				boolean last) {
+			if (lines != null) {
+				return new StreamReader(is, lines);
+			} else if (channel != null) {
+				return new StreamReader(is, channel);
+			}
+			return new StreamReader(is, captureLimit, last ? spillDirectory : null);
+		}
+
+		/**
+		 * Run the command and wait for it to finish
+		 * 
+		 * @return the result
+		 */
+		public ShellCommand run() {
+			return runAsync().join();
+		}
+
+		/**
+		 * Run the command without waiting for it to finish. Cancelling the
+		 * future kills the process and its descendants and deletes any files
+		 * that output has been spilled to.
+		 * 
+		 * @return a future which completes, never exceptionally unless it is
+		 *         cancelled, with the result when the command has exited and
+		 *         its output has been read
+		 */
+		public CompletableFuture<ShellCommand> runAsync() {
+			return new ShellCommand().start(this);
+		}
+	}
+
 	private int exitValue;
 	private String stdout;
 	private String stderr;
+	private volatile boolean timedOut;
+	private Path stdoutFile;
+	private Path stderrFile;
 
 	/**
 	 * Construct a ShellCommand
@@ -64,58 +350,250 @@ public class ShellCommand {
 		init(null, null, arglist);
 	}
 
+	/* How long to wait for a timed out command to die, and its output, once it is killed */
+	private static final long GRACE_MILLIS = 1000;
+
+	/**
+	 * The exit value reported for a command which timed out and could not be
+	 * killed, for example because it is stuck in uninterruptible I/O
+	 */
+	public static final int STILL_RUNNING = -1;
+
+	/* Only for a Builder */
+	private ShellCommand() {
+	}
+
+	/**
+	 * Runs the tasks which copy data to and from processes. These block on
+	 * pipes so the pool cannot be bounded without risking a child blocking on
+	 * a full pipe. Where virtual threads are available (Java 21 and later)
+	 * each task gets one, so a blocked task holds no platform thread;
+	 * otherwise idle platform threads are reused.
+	 */
+	private static class ExecutorHolder {
+		private static final ExecutorService executor = newExecutor();
+
+		private static ExecutorService newExecutor() {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				return Executors.newCachedThreadPool(r -> {
+					Thread thread = new Thread(r, "ShellCommand stream");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+		}
+
+		/* Kills processes which run out of time */
+		private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ShellCommand timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Run a command without waiting for it to finish. Its output is read, and
+	 * any input written, by tasks on a shared executor so no thread is held
+	 * for the command as a whole.
+	 * 
+	 * @param args
+	 *            argument
+	 * 
+	 * @return a future which completes, never exceptionally, with the result
+	 *         when the command has exited and its output has been read
+	 */
+	public static CompletableFuture<ShellCommand> runAsync(String... args) {
+		return new Builder(args).runAsync();
+	}
+
+	/**
+	 * Run a command without waiting for it to finish
+	 * 
+	 * @param arglist
+	 *            list or arguments
+	 * 
+	 * @return a future which completes, never exceptionally, with the result
+	 *         when the command has exited and its output has been read
+	 */
+	public static CompletableFuture<ShellCommand> runAsync(List<String> arglist) {
+		return new Builder(arglist).runAsync();
+	}
+
+	/**
+	 * Run a command without waiting for it to finish
+	 * 
+	 * @param home
+	 *            working directory to use
+	 * 
+	 * @param inputStream
+	 *            stream for process to read from, which is read by another
+	 *            thread
+	 * 
+	 * @param args
+	 *            argument
+	 * 
+	 * @return a future which completes, never exceptionally, with the result
+	 *         when the command has exited and its output has been read
+	 */
+	public static CompletableFuture<ShellCommand> runAsync(Path home, InputStream inputStream, String... args) {
+		return new Builder(args).directory(home).input(inputStream).runAsync();
+	}
+
 	private void init(Path home, InputStream is, List<String> args) {
-		Process p = null;
-		StreamReader osr;
-		StreamReader esr;
-		InputStream posr = null;
-		InputStream pesr = null;
-		OutputStream pisr = null;
+		start(new Builder(args).directory(home).input(is)).join();
+	}
+
+	private CompletableFuture<ShellCommand> start(Builder builder) {
+		InputStream is = builder.inputStream;
+		List<Process> processes;
 		try {
-			ProcessBuilder pb = new ProcessBuilder(args);
-			if (home != null) {
-				pb.directory(home.toFile());
+			List<ProcessBuilder> pbs = new ArrayList<>(builder.stages.size());
+			for (List<String> stage : builder.stages) {
+				ProcessBuilder pb = new ProcessBuilder(stage);
+				if (builder.home != null) {
+					pb.directory(builder.home.toFile());
+				}
+				pbs.add(pb);
 			}
+			if (builder.inputFile != null) {
+				pbs.get(0).redirectInput(Redirect.from(builder.inputFile.toFile()));
+			}
+			// Starting a pipeline destroys any commands started before one fails
+			processes = pbs.size() == 1 ? Arrays.asList(pbs.get(0).start()) : ProcessBuilder.startPipeline(pbs);
+		} catch (Exception e) {
+			fail(e);
+			return CompletableFuture.completedFuture(this);
+		}
+		Process p = processes.get(processes.size() - 1);
 
-			p = pb.start();
-
-			posr = p.getInputStream();
-			osr = new StreamReader(posr);
-			osr.start();
+		ExecutorService executor = ExecutorHolder.executor;
+		List<CompletableFuture<?>> tasks = new ArrayList<>();
+		List<Closeable> streams = new ArrayList<>();
+		InputStream posr = p.getInputStream();
+		streams.add(posr);
+		StreamReader osr = builder.reader(posr, builder.stdoutLines, builder.stdoutChannel, true);
+		tasks.add(CompletableFuture.runAsync(osr, executor));
 
-			pesr = p.getErrorStream();
-			esr = new StreamReader(pesr);
-			esr.start();
+		List<StreamReader> esrs = new ArrayList<>(processes.size());
+		for (Process process : processes) {
+			InputStream pesr = process.getErrorStream();
+			streams.add(pesr);
+			StreamReader esr = builder.reader(pesr, builder.stderrLines, builder.stderrChannel, process == p);
+			esrs.add(esr);
+			tasks.add(CompletableFuture.runAsync(esr, executor));
+			tasks.add(process.onExit());
+		}
 
-			pisr = p.getOutputStream();
-			if (is != null) {
-				byte[] bytes = new byte[1024];
-				int n;
-				while ((n = is.read(bytes)) != -1) {
-					pisr.write(bytes, 0, n);
+		OutputStream pisr = processes.get(0).getOutputStream();
+		streams.add(pisr);
+		if (is == null) {
+			close(pisr); // Close the stream feeding the process
+		} else {
+			tasks.add(CompletableFuture.runAsync(() -> {
+				try (OutputStream os = pisr) {
+					is.transferTo(os);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
+			}, executor));
+		}
+
+		/*
+		 * Completes when the output has all been read or, once a command has
+		 * timed out, a little after its processes have been killed: a
+		 * descendant which escaped may still hold the pipes open and a
+		 * process in uninterruptible I/O may not die at all.
+		 */
+		CompletableFuture<Void> finished = new CompletableFuture<>();
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).whenComplete((v, t) -> {
+			if (t != null) {
+				finished.completeExceptionally(t);
+			} else {
+				finished.complete(null);
 			}
-			pisr.close(); // Close the stream feeding the process
+		});
 
-			osr.join();
-			esr.join();
-			p.waitFor();
+		if (builder.timeoutMillis > 0) {
+			CompletableFuture<?> exited = CompletableFuture
+					.allOf(processes.stream().map(Process::onExit).toArray(CompletableFuture[]::new));
+			ScheduledFuture<?> timeout = ExecutorHolder.timer.schedule(() -> {
+				if (processes.stream().anyMatch(Process::isAlive)) {
+					timedOut = true;
+					destroy(processes);
+					ExecutorHolder.timer.schedule(() -> finished.complete(null), GRACE_MILLIS,
+							TimeUnit.MILLISECONDS);
+				}
+			}, builder.timeoutMillis, TimeUnit.MILLISECONDS);
+			exited.thenRun(() -> timeout.cancel(false));
+		}
 
-			exitValue = p.exitValue();
-			stdout = osr.getOut();
-			stderr = esr.getOut();
+		CompletableFuture<ShellCommand> result = finished.handle((v, t) -> {
+			try {
+				// Feeding stdin fails when the process is killed, but the output is still wanted
+				if (t != null && !timedOut) {
+					fail(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+					osr.deleteSpillFile();
+					esrs.forEach(StreamReader::deleteSpillFile);
+				} else {
+					// Take what has been read from any pipes still held open
+					osr.abandon();
+					esrs.forEach(StreamReader::abandon);
+					exitValue = p.isAlive() ? STILL_RUNNING : p.exitValue();
+					stdout = osr.getOut();
+					StringBuilder sb = new StringBuilder();
+					for (StreamReader esr : esrs) {
+						sb.append(esr.getOut());
+					}
+					stderr = sb.toString();
+					stdoutFile = osr.getSpillFile();
+					stderrFile = esrs.get(esrs.size() - 1).getSpillFile();
+				}
+			} catch (Exception e) {
+				fail(e);
+				stdoutFile = null;
+				stderrFile = null;
+				osr.deleteSpillFile();
+				esrs.forEach(StreamReader::deleteSpillFile);
+			} finally {
+				/* Make sure everything is safely closed */
+				streams.forEach(this::close);
+			}
+			return this;
+		});
+		// Once cancelled the result is never handled so clean up here
+		result.whenComplete((sc, t) -> {
+			if (t instanceof CancellationException) {
+				destroy(processes);
+				osr.deleteSpillFile();
+				esrs.forEach(StreamReader::deleteSpillFile);
+				streams.forEach(this::close);
+			}
+		});
+		return result;
+	}
 
-		} catch (Exception e) {
-			exitValue = 1; // Standard linux "catchall" value
-			stdout = "";
-			stderr = e.getMessage();
+	/*
+	 * Kill processes and their descendants. Each process goes first, as a
+	 * shell would carry on with its script if its child were killed, but its
+	 * descendants must be found before they are orphaned.
+	 */
+	private static void destroy(List<Process> processes) {
+		for (Process p : processes) {
+			List<ProcessHandle> descendants = p.descendants().collect(Collectors.toList());
+			p.destroyForcibly();
+			descendants.forEach(ProcessHandle::destroyForcibly);
+		}
+	}
 
-		} finally {
-			/* Make sure everything is safely closed */
-			close(pisr);
-			close(posr);
-			close(pesr);
+	private void fail(Throwable e) {
+		if (e instanceof UncheckedIOException) {
+			e = e.getCause();
 		}
+		exitValue = 1; // Standard linux "catchall" value
+		stdout = "";
+		stderr = e.getMessage();
 	}
 
 	/** Close a stream ignoring any errors */
@@ -148,7 +626,30 @@ public class ShellCommand {
 	}
 
 	/**
-	 * Get the return value for the call
+	 * Get the file holding the whole of stdout if it passed the capture limit
+	 * set by {@link Builder#captureLimit(int, Path)}. The caller is
+	 * responsible for deleting it.
+	 * 
+	 * @return the file or null if stdout was all kept in memory
+	 */
+	public Path getStdoutFile() {
+		return stdoutFile;
+	}
+
+	/**
+	 * Get the file holding the whole of stderr if it passed the capture limit
+	 * set by {@link Builder#captureLimit(int, Path)}. The caller is
+	 * responsible for deleting it.
+	 * 
+	 * @return the file or null if stderr was all kept in memory
+	 */
+	public Path getStderrFile() {
+		return stderrFile;
+	}
+
+	/**
+	 * Get the return value for the call, which for a pipeline is that of the
+	 * last command
 	 * 
 	 * @return return value for the call
 	 */
@@ -163,7 +664,18 @@ public class ShellCommand {
 	 * @return true if it appears that the command failed else false
 	 */
 	public boolean isError() {
-		return exitValue != 0 || !stderr.isEmpty();
+		return timedOut || exitValue != 0 || !stderr.isEmpty();
+	}
+
+	/**
+	 * Report whether or not the command was killed because it ran out of
+	 * time, in which case stdout and stderr hold whatever it wrote before it
+	 * was killed.
+	 * 
+	 * @return true if the command timed out
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
 	}
 
 	/**
@@ -173,7 +685,9 @@ public class ShellCommand {
 	 * @return an error message
 	 */
 	public String getMessage() {
-		if (isError()) {
+		if (timedOut) {
+			return "timed out: " + stderr;
+		} else if (isError()) {
 			return "code " + exitValue + ": " + stderr;
 		} else {
 			return "";
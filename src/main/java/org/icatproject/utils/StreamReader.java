@@ -1,39 +1,277 @@
 package org.icatproject.utils;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
 
-class StreamReader extends Thread {
+/**
+ * Reads a stream to the end, either keeping what was read as a String, which
+ * may be limited in size, or passing it on as it arrives to a consumer of
+ * lines or to a channel. It is run as a task on an executor so that a thread
+ * is only tied up while there is a stream to drain.
+ * 
+ * If the consumer or channel fails the rest of the stream is still read, and
+ * discarded, so that the process writing it is not blocked.
+ * 
+ * The output may be abandoned before the end of the stream, in which case
+ * what has been kept so far becomes the result and the rest is discarded.
+ */
+class StreamReader implements Runnable {
 
 	private String out;
 	private InputStream inputStream;
+	private Consumer<String> lines;
+	private WritableByteChannel channel;
+	private int limit;
+	private Path spillDirectory;
+	private Path spillFile;
 	private IOException iOexception;
+	private volatile boolean abandoned;
+
+	/* What has been kept so far when capturing */
+	private ByteArrayOutputStream baos;
+	private byte[] head;
+	private int headUsed;
+	/* A ring holding the most recent bytes after the head */
+	private byte[] tail;
+	private long tailCount;
+	private OutputStream file;
 
 	StreamReader(InputStream inputStream) {
 		this.inputStream = inputStream;
 	}
 
+	/**
+	 * Keep at most limit bytes in memory. If spillDirectory is null the first
+	 * and last halves of the limit are kept with a marker between them,
+	 * otherwise as soon as the limit is passed the whole stream is written to
+	 * a new file in that directory. The cuts are made at byte offsets so may
+	 * split a multi-byte character, which then decodes as a replacement
+	 * character.
+	 */
+	StreamReader(InputStream inputStream, int limit, Path spillDirectory) {
+		this.inputStream = inputStream;
+		this.limit = limit;
+		this.spillDirectory = spillDirectory;
+	}
+
+	StreamReader(InputStream inputStream, Consumer<String> lines) {
+		this.inputStream = inputStream;
+		this.lines = lines;
+	}
+
+	StreamReader(InputStream inputStream, WritableByteChannel channel) {
+		this.inputStream = inputStream;
+		this.channel = channel;
+	}
+
 	@Override
 	public void run() {
 		try {
-			byte[] buff = new byte[4096];
-			int n;
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			while ((n = inputStream.read(buff)) >= 0) {
-				baos.write(buff, 0, n);
+			if (lines != null) {
+				out = "";
+				BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!abandoned) {
+						lines.accept(line);
+					}
+				}
+			} else if (channel != null) {
+				out = "";
+				byte[] buff = new byte[8192];
+				ByteBuffer buffer = ByteBuffer.wrap(buff);
+				int n;
+				while ((n = inputStream.read(buff)) >= 0) {
+					buffer.clear().limit(n);
+					while (buffer.hasRemaining() && !abandoned) {
+						channel.write(buffer);
+					}
+				}
+			} else {
+				startCapture();
+				byte[] buff = new byte[4096];
+				int n;
+				while ((n = inputStream.read(buff)) >= 0) {
+					capture(buff, n);
+				}
+				finishCapture();
+			}
+		} catch (IOException e) {
+			failed(e);
+			discard();
+		} catch (RuntimeException e) {
+			failed(new IOException(e));
+			discard();
+		}
+	}
+
+	private synchronized void startCapture() {
+		baos = new ByteArrayOutputStream();
+		if (limit > 0 && spillDirectory == null) {
+			head = new byte[limit / 2];
+			tail = new byte[limit - head.length];
+		}
+	}
+
+	private synchronized void capture(byte[] buff, int n) throws IOException {
+		if (abandoned) {
+			return;
+		} else if (limit == 0) {
+			baos.write(buff, 0, n);
+		} else if (spillDirectory == null) {
+			captureHeadAndTail(buff, n);
+		} else {
+			captureOrSpill(buff, n);
+		}
+	}
+
+	private void captureHeadAndTail(byte[] buff, int n) {
+		int off = 0;
+		if (headUsed < head.length) {
+			int len = Math.min(n, head.length - headUsed);
+			System.arraycopy(buff, 0, head, headUsed, len);
+			headUsed += len;
+			off = len;
+		}
+		if (n - off > tail.length) {
+			tailCount += n - off - tail.length;
+			off = n - tail.length;
+		}
+		while (off < n) {
+			int pos = (int) (tailCount % tail.length);
+			int len = Math.min(n - off, tail.length - pos);
+			System.arraycopy(buff, off, tail, pos, len);
+			tailCount += len;
+			off += len;
+		}
+	}
+
+	private void captureOrSpill(byte[] buff, int n) throws IOException {
+		if (file == null && baos.size() + n > limit) {
+			spillFile = Files.createTempFile(spillDirectory, "shellcommand", ".out");
+			file = Files.newOutputStream(spillFile);
+			baos.writeTo(file);
+		}
+		if (file == null) {
+			baos.write(buff, 0, n);
+		} else {
+			file.write(buff, 0, n);
+		}
+	}
+
+	/* Turn what has been kept into the result */
+	private synchronized void finishCapture() throws IOException {
+		if (out != null || iOexception != null) {
+			return;
+		}
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+		/* The markers must be encoded as the output is decoded */
+		Charset charset = Charset.defaultCharset();
+		if (head != null) {
+			baos.write(head, 0, headUsed);
+			if (tailCount > tail.length) {
+				baos.write(String.format("%n... [%d bytes omitted] ...%n", tailCount - tail.length).getBytes(charset));
+				int pos = (int) (tailCount % tail.length);
+				baos.write(tail, pos, tail.length - pos);
+				baos.write(tail, 0, pos);
+			} else {
+				baos.write(tail, 0, (int) tailCount);
+			}
+		} else if (spillFile != null) {
+			baos.write(String.format("%n... [complete output in %s] ...%n", spillFile).getBytes(charset));
+		}
+		out = baos.toString(charset);
+	}
+
+	private synchronized void failed(IOException e) {
+		if (!abandoned) {
+			iOexception = e;
+		}
+		closeFile();
+	}
+
+	private void closeFile() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// The file has failed too
 			}
-			out = baos.toString();
+			file = null;
+		}
+	}
+
+	private void discard() {
+		try {
+			inputStream.transferTo(OutputStream.nullOutputStream());
 		} catch (IOException e) {
-			this.iOexception = e;
+			// The stream has failed too
+		}
+	}
+
+	/**
+	 * Stop passing on or keeping output, making whatever has been kept so far
+	 * the result if the end of the stream has not been reached. The stream is
+	 * still read, and discarded, until it ends or is closed.
+	 */
+	synchronized void abandon() {
+		if (abandoned) {
+			return;
+		}
+		if (baos != null) {
+			try {
+				finishCapture();
+			} catch (IOException e) {
+				iOexception = e;
+			}
+		} else if (out == null) {
+			out = ""; // Nothing has been read yet
 		}
+		abandoned = true;
+	}
+
+	/**
+	 * Abandon the output and delete the file holding the whole stream, if
+	 * there is one, for when the output is not going to be used.
+	 */
+	synchronized void deleteSpillFile() {
+		abandon();
+		closeFile();
+		if (spillFile != null) {
+			try {
+				Files.deleteIfExists(spillFile);
+			} catch (IOException e) {
+				// Nothing more can be done
+			}
+			spillFile = null;
+		}
+	}
+
+	/**
+	 * @return the file holding the whole stream or null if it was not needed
+	 */
+	synchronized Path getSpillFile() {
+		return spillFile;
 	}
 
-	String getOut() throws IOException {
+	synchronized String getOut() throws IOException {
 		if (iOexception != null) {
 			throw iOexception;
 		}
 		return out;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+package org.icatproject.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.utils.CheckedProperties.CheckedPropertyException;
+
+/**
+ * An AddressChecker which takes its patterns from a property in a properties
+ * file, such as run.properties, and reloads them whenever that file changes.
+ * 
+ * The file is watched by a daemon thread. When it changes, and has then stayed
+ * the same for half a second so that a file which is still being written is
+ * not loaded, the patterns are read and compiled on that thread and then
+ * switched to atomically, so checks in progress carry on with the previous
+ * patterns and are never held up. If the file cannot be read or the patterns
+ * are invalid the previous patterns remain in force.
+ * 
+ * Call {@link #close()} to stop watching the file.
+ */
+public class WatchedAddressChecker extends AddressChecker implements Closeable {
+
+	/* How long the file must be unchanged before it is loaded */
+	private static final long SETTLE_MILLIS = 500;
+
+	private final Path file;
+	private final String key;
+	private final WatchService watchService;
+
+	/**
+	 * Create an AddressChecker bound to a property
+	 * 
+	 * @param file
+	 *            the properties file to read
+	 * @param key
+	 *            the name of the property holding the space separated list of
+	 *            patterns to accept
+	 * 
+	 * @throws AddressCheckerException
+	 *             if the property cannot be read, any pattern is invalid or
+	 *             the file cannot be watched.
+	 */
+	public WatchedAddressChecker(Path file, String key) throws AddressCheckerException {
+		super(readPatterns(file, key));
+		this.file = file.toAbsolutePath();
+		this.key = key;
+		try {
+			watchService = this.file.getFileSystem().newWatchService();
+			// Watch the directory as editors often replace the file rather than modify it
+			this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			throw new AddressCheckerException("Unable to watch " + file + ": " + e.getMessage());
+		}
+
+		Thread watcher = new Thread(this::watch, "AddressChecker watching " + this.file);
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	private static String readPatterns(Path file, String key) throws AddressCheckerException {
+		CheckedProperties props = new CheckedProperties();
+		try {
+			props.loadFromFile(file.toString());
+			return props.getString(key);
+		} catch (CheckedPropertyException e) {
+			throw new AddressCheckerException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the property and switch to its patterns now rather than waiting for
+	 * the file to change.
+	 * 
+	 * @throws AddressCheckerException
+	 *             if the property cannot be read or any pattern is invalid, in
+	 *             which case the previous patterns are kept.
+	 */
+	public void reload() throws AddressCheckerException {
+		setPatterns(readPatterns(file, key));
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey watchKey = watchService.take();
+				boolean changed = concernsFile(watchKey);
+				if (!watchKey.reset()) {
+					return;
+				}
+				if (changed && awaitSettled()) {
+					try {
+						reload();
+					} catch (AddressCheckerException e) {
+						// Keep the previous patterns until the file is fixed
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Stop watching
+		}
+	}
+
+	/**
+	 * @return true if any event of the key is for the file or events may have
+	 *         been lost
+	 */
+	private boolean concernsFile(WatchKey watchKey) {
+		Path name = file.getFileName();
+		boolean changed = false;
+		for (WatchEvent<?> event : watchKey.pollEvents()) {
+			changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+		}
+		return changed;
+	}
+
+	/**
+	 * Wait until there have been no events for the file, and its size and
+	 * modification time have stayed the same, for SETTLE_MILLIS. Events for
+	 * other files in the directory are ignored.
+	 * 
+	 * @return false if the directory can no longer be watched
+	 */
+	private boolean awaitSettled() throws InterruptedException {
+		String last = describe();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+		while (true) {
+			long remaining = deadline - System.nanoTime();
+			WatchKey watchKey = remaining > 0 ? watchService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+			if (watchKey != null) {
+				boolean changed = concernsFile(watchKey);
+				if (!watchKey.reset()) {
+					return false;
+				}
+				if (changed) {
+					last = describe();
+					deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+				}
+			} else {
+				String now = describe();
+				if (now.equals(last)) {
+					return true;
+				}
+				last = now;
+				deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+			}
+		}
+	}
+
+	private String describe() {
+		try {
+			return Files.size(file) + " " + Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return "missing";
+		}
+	}
+
+	/**
+	 * Stop watching the file. The patterns last loaded remain in force.
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+}
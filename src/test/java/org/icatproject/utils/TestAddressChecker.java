@@ -1,9 +1,18 @@
 package org.icatproject.utils;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 
 public class TestAddressChecker {
@@ -24,6 +33,204 @@ public class TestAddressChecker {
 		assertFalse("Three", a.check("192:168:3:0:0:0:1:0"));
 	}
 
+	@Test
+	public void testPrefixes() throws AddressCheckerException {
+		AddressChecker a = new AddressChecker("10.0.0.0/8 10.1.2.0/24 128.0.0.0/1 0:0:0:0:0:0:0:0/0");
+		assertTrue(a.check("10.255.255.255"));
+		assertTrue(a.check("10.1.2.3"));
+		assertTrue(a.check("255.255.255.255"));
+		assertFalse(a.check("11.0.0.0"));
+		assertFalse(a.check("127.255.255.255"));
+		assertTrue(a.check("FFFF:0:0:0:0:0:0:1"));
+
+		a = new AddressChecker("0.0.0.0/0 1:2:3:4:5:6:7:8 1:2:3:4:0:0:0:0/65");
+		assertTrue(a.check("0.0.0.0"));
+		assertTrue(a.check("1:2:3:4:5:6:7:8"));
+		assertTrue(a.check("1:2:3:4:7FFF:FFFF:FFFF:FFFF"));
+		assertFalse(a.check("1:2:3:4:8000:0:0:0"));
+		assertFalse(a.check("1:2:3:5:5:6:7:8"));
+	}
+
+	@Test
+	public void testLiterals() throws Exception {
+		for (String literal : new String[] { "0.0.0.0", "255.255.255.255", "192.168.3.15", "::", "::1", "1::",
+				"1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "fe80::1:2", "FE80:0:0:0:0:0:0:1",
+				"[::1]", "::1.2.3.4", "1:2:3:4:5:6:1.2.3.4", "::ffff:1.2.3.4", "::FFFF:102:304",
+				"0:0:0:0:0:ffff:a00:1" }) {
+			long[] parsed = new long[2];
+			byte[] bytes;
+			if (AddressParser.parse(literal, parsed) == AddressParser.IPV4) {
+				bytes = ByteBuffer.allocate(4).putInt((int) parsed[0]).array();
+			} else {
+				bytes = ByteBuffer.allocate(16).putLong(parsed[0]).putLong(parsed[1]).array();
+			}
+			assertArrayEquals(literal, InetAddress.getByName(literal).getAddress(), bytes);
+		}
+
+		for (String notLiteral : new String[] { "", "localhost", "1.2.3", "1.2.3.4.5", "01.2.3.4", "1.2.3.256",
+				"1..2.3", "1.2.3.4.", ":", ":::", "1:2", "1::2::3", "1:2:3:4:5:6:7:8:9", "1::2:3:4:5:6:7:8",
+				"12345::", "::g", "1:2:3:4:5:6:7:8%", "1.2.3.4::", "[::1", "::1.2.3", "\uff11.2.3.4" }) {
+			assertEquals(notLiteral, AddressParser.NONE, AddressParser.parse(notLiteral, new long[2]));
+		}
+	}
+
+	@Test
+	public void testZoneAndMapped() throws AddressCheckerException {
+		AddressChecker a = new AddressChecker("10.0.0.0/8 fe80:0:0:0:0:0:0:0/10");
+		a.setStrict(true);
+		assertTrue(a.check("::ffff:10.1.2.3"));
+		assertTrue(a.check("fe80::1%eth0"));
+		assertTrue(a.check("[fe80::1%1]"));
+		assertFalse(a.check("::10.1.2.3"));
+	}
+
+	@Test
+	public void testStrict() throws AddressCheckerException {
+		AddressChecker a = new AddressChecker("127.0.0.1");
+		assertTrue(a.check("localhost"));
+		a.setStrict(true);
+		assertTrue(a.check("127.0.0.1"));
+		assertThrows(AddressCheckerException.class, () -> {
+			a.check("localhost");
+		});
+		assertThrows(AddressCheckerException.class, () -> {
+			a.check("010.0.0.1");
+		});
+	}
+
+	@Test
+	public void testCache() throws AddressCheckerException {
+		AddressChecker a = new AddressChecker("192.168.3.0/24");
+		a.setCacheSize(2);
+		assertTrue(a.check("192.168.3.1"));
+		assertTrue(a.check("192.168.3.1"));
+		assertFalse(a.check("192.168.4.1"));
+		assertFalse(a.check("192.168.4.1"));
+		assertTrue(a.check("192.168.3.2"));
+		assertTrue(a.check("192.168.3.1"));
+		assertEquals(2, a.getCacheHits());
+		assertEquals(4, a.getCacheMisses());
+
+		// Strict so that the bad address is not looked up in DNS
+		a.setStrict(true);
+		assertThrows(AddressCheckerException.class, () -> {
+			a.check("192.168.3.x");
+		});
+		assertEquals(5, a.getCacheMisses());
+
+		a.setCacheSize(0);
+		assertTrue(a.check("192.168.3.1"));
+		assertEquals(0, a.getCacheHits());
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		AddressChecker a = new AddressChecker("localhost 10.0.0.0/8");
+		a.setCacheSize(10);
+		assertTrue(a.check("127.0.0.1"));
+		a.refresh();
+		assertTrue(a.check("127.0.0.1"));
+		assertEquals("Unchanged addresses keep the cache", 1, a.getCacheHits());
+
+		a.startRefresh(10, TimeUnit.MILLISECONDS);
+		Thread.sleep(50);
+		assertTrue(a.check("127.0.0.1"));
+		assertTrue(a.check("10.1.2.3"));
+		assertFalse(a.check("11.1.2.3"));
+		a.stopRefresh();
+	}
+
+	@Test
+	public void testDeny() throws AddressCheckerException {
+		AddressChecker a = new AddressChecker("10.0.0.0/8 !10.6.0.0/16 10.6.6.0/24 !0:0:0:0:0:0:0:1");
+		assertTrue(a.check("10.1.2.3"));
+		assertFalse(a.check("10.6.2.3"));
+		assertTrue(a.check("10.6.6.3"));
+		assertFalse(a.check("11.0.0.1"));
+		assertFalse(a.check("::1"));
+		assertFalse(a.check(0x0A060203));
+		assertTrue(a.check(0x0A060603));
+
+		assertEquals("10.0.0.0/8", a.match("10.1.2.3").toString());
+		AddressChecker.Rule rule = a.match("10.6.2.3");
+		assertEquals(1, rule.getIndex());
+		assertEquals("10.6.0.0/16", rule.getPattern());
+		assertFalse(rule.isAllow());
+		assertEquals("!10.6.0.0/16", rule.toString());
+		assertEquals(2, a.match("10.6.6.3").getIndex());
+		assertEquals(null, a.match("11.0.0.1"));
+
+		// Order matters: the last matching rule wins
+		a = new AddressChecker("!10.6.0.0/16 10.0.0.0/8");
+		a.setCacheSize(10);
+		assertTrue(a.check("10.6.2.3"));
+		assertEquals(1, a.match("10.6.2.3").getIndex());
+		assertEquals(null, a.match("11.0.0.1"));
+		assertEquals(null, a.match("11.0.0.1"));
+		assertEquals(2, a.getCacheHits());
+
+		assertThrows(AddressCheckerException.class, () -> {
+			new AddressChecker("10.0.0.0/8 !");
+		});
+		// An empty pattern is still loopback
+		assertTrue(new AddressChecker("").check("127.0.0.1"));
+	}
+
+	@Test
+	public void testSetPatterns() throws Exception {
+		AddressChecker a = new AddressChecker("192.168.3.0/24");
+		a.setCacheSize(10);
+		assertTrue(a.check("192.168.3.1"));
+		a.setPatterns("10.0.0.0/8");
+		assertFalse(a.check("192.168.3.1"));
+		assertTrue(a.check("10.0.0.1"));
+		assertThrows(AddressCheckerException.class, () -> {
+			a.setPatterns("10.0.0.0/33");
+		});
+		assertTrue(a.check("10.0.0.1"));
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		AddressChecker a = new AddressChecker("192.168.3.0/24 192:168:3:0:0:0:0:0/112");
+		assertTrue(a.check(new byte[] { (byte) 192, (byte) 168, 3, 7 }));
+		assertFalse(a.check(new byte[] { (byte) 192, (byte) 168, 4, 7 }));
+		assertTrue(a.check(InetAddress.getByName("192:168:3::7")));
+		assertTrue(a.check(InetAddress.getByName("::ffff:192.168.3.7").getAddress()));
+		assertTrue(a.check(0xC0A803FF));
+		assertFalse(a.check(0xC0A80400));
+		assertThrows(AddressCheckerException.class, () -> {
+			a.check(new byte[] { 1, 2, 3 });
+		});
+	}
+
+	@Test
+	public void testBulk() throws Exception {
+		AddressChecker a = new AddressChecker("10.0.0.0/16");
+		int[] ipv4s = new int[100000];
+		List<String> addresses = new ArrayList<>();
+		for (int i = 0; i < ipv4s.length; i++) {
+			ipv4s[i] = 0x0A000000 + i * 7;
+			addresses.add(String.format("10.%d.%d.%d", (i * 7) >>> 16, (i * 7) >>> 8 & 0xFF, (i * 7) & 0xFF));
+		}
+		BitSet expected = new BitSet();
+		for (int i = 0; i < ipv4s.length; i++) {
+			if (i * 7 < 0x10000) {
+				expected.set(i);
+			}
+		}
+		assertEquals(expected, a.check(ipv4s));
+		assertEquals(expected, a.check(ipv4s, true));
+		assertEquals(expected, a.check(addresses));
+		assertEquals(expected, a.check(addresses, true));
+
+		addresses.set(70000, "10.0.0");
+		a.setStrict(true);
+		assertThrows(AddressCheckerException.class, () -> {
+			a.check(addresses, true);
+		});
+	}
+
 	@Test
 	public void testLocalhost() throws AddressCheckerException {
 		AddressChecker a = new AddressChecker("localhost");
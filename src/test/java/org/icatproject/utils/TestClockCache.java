@@ -0,0 +1,51 @@
+package org.icatproject.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestClockCache {
+
+	@Test
+	public void testEviction() {
+		ClockCache<Integer, String> cache = new ClockCache<>(3);
+		for (int i = 0; i < 3; i++) {
+			cache.put(i, Integer.toString(i));
+		}
+		assertEquals("0", cache.get(0));
+		assertEquals("2", cache.get(2));
+		cache.put(3, "3");
+		assertEquals(3, cache.size());
+		assertEquals(null, cache.get(1));
+		assertEquals("0", cache.get(0));
+		assertEquals("3", cache.get(3));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(null, cache.get(0));
+	}
+
+	@Test
+	public void testRemoveIf() {
+		ClockCache<Integer, String> cache = new ClockCache<>(3);
+		for (int i = 0; i < 3; i++) {
+			cache.put(i, Integer.toString(i));
+		}
+		cache.removeIf(k -> k == 0);
+		assertEquals(2, cache.size());
+		assertEquals(null, cache.get(0));
+		assertEquals("1", cache.get(1));
+		cache.put(4, "4");
+		assertEquals(3, cache.size());
+		assertEquals("4", cache.get(4));
+		cache.put(5, "5");
+		assertEquals(3, cache.size());
+		assertEquals("5", cache.get(5));
+
+		cache.removeIf(k -> true);
+		assertEquals(0, cache.size());
+		cache.put(6, "6");
+		assertEquals("6", cache.get(6));
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.icatproject.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDelimitedUnitsConverter {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String convert(DelimitedUnitsConverter converter, String input) throws Exception {
+		StringWriter writer = new StringWriter();
+		converter.convert(new BufferedReader(new StringReader(input)), writer);
+		return writer.toString();
+	}
+
+	@Test
+	public void testRows() throws Exception {
+		DelimitedUnitsConverter converter = new DelimitedUnitsConverter(new IcatUnits("J: eV 1.602176634e-19"), 1, 2);
+		converter.setHeader(true);
+		String input = "name,value,units,comment\n" + "a,5,mK,cold\n" + "b,2,eV,\n" + "c,3,arbitrary units,x\n"
+				+ "d,n/a,K,x\n" + "e,7\n" + "\"f, g\",\"1.5\",\"km\",\"said \"\"far\"\"\"\n";
+		String expected = "name,value,units,comment\n" + "a,0.005,Kelvin,cold\n" + "b,3.204353268E-19,Joule,\n"
+				+ "c,3,arbitrary units,x\n" + "d,n/a,K,x\n" + "e,7\n" + "\"f, g\",1500.0,Metre,\"said \"\"far\"\"\"\n";
+		assertEquals(expected, convert(converter, input));
+
+		// Columns in the other order, separated by tabs
+		converter = new DelimitedUnitsConverter(new IcatUnits(), 2, 0);
+		converter.setDelimiter('\t');
+		assertEquals("Kelvin\tx\t2000.0\n", convert(converter, "kK\tx\t2\n"));
+
+		assertThrows(IllegalArgumentException.class, () -> {
+			new DelimitedUnitsConverter(new IcatUnits(), 1, 1);
+		});
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		Path input = folder.getRoot().toPath().resolve("in.csv");
+		Path output = folder.getRoot().toPath().resolve("out.csv");
+		List<String> lines = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		IcatUnits icatUnits = new IcatUnits();
+		String[] units = { "mK", "K", "GK", "unknown" };
+		for (int i = 0; i < 10000; i++) {
+			lines.add(i + "," + units[i % 4]);
+			expected.add(i % 4 == 3 ? lines.get(i) : icatUnits.converterFor(units[i % 4]).toSi(i) + ",Kelvin");
+		}
+		Files.write(input, lines, StandardCharsets.UTF_8);
+
+		DelimitedUnitsConverter converter = new DelimitedUnitsConverter(icatUnits, 0, 1);
+		converter.setBatchSize(333);
+		assertEquals(7500, converter.convert(input, output));
+		assertEquals(expected, Files.readAllLines(output, StandardCharsets.UTF_8));
+
+		converter.setParallel(false);
+		converter.setBatchSize(10000);
+		assertEquals(7500, converter.convert(input, output));
+		assertEquals(expected, Files.readAllLines(output, StandardCharsets.UTF_8));
+
+		Files.write(input, Arrays.asList("value,units"), StandardCharsets.UTF_8);
+		converter.setHeader(true);
+		assertEquals(0, converter.convert(input, output));
+		assertEquals(Arrays.asList("value,units"), Files.readAllLines(output, StandardCharsets.UTF_8));
+	}
+
+}
@@ -1,6 +1,18 @@
 package org.icatproject.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -16,4 +28,106 @@ public class TestIcatSecurity {
 				IcatSecurity.digest(43L, "here", "secret"));
 	}
 
-}
\ No newline at end of file
+	@Test
+	public final void testDigestReuse() throws Exception {
+		StringBuilder longLocation = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			longLocation.append("/a/long/path/\u00e9\u4e2d");
+		}
+		String[] locations = { "here", "", null, "caf\u00e9", "\ud800", longLocation.toString() };
+		Long[] ids = { 42L, null, -1L, Long.MAX_VALUE };
+
+		Thread[] threads = new Thread[8];
+		AtomicBoolean failed = new AtomicBoolean();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < 200; i++) {
+						Long id = ids[i % ids.length];
+						String location = locations[i % locations.length];
+						byte[] expected = MessageDigest.getInstance("SHA-256")
+								.digest((id + location + "secret").getBytes());
+						String actual = IcatSecurity.digest(id, location, "secret");
+						if (!actual.equals(String.format("%064X", new BigInteger(1, expected)))) {
+							failed.set(true);
+						}
+					}
+				} catch (NoSuchAlgorithmException e) {
+					failed.set(true);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(failed.get());
+	}
+
+	@Test
+	public final void testDigestUtf8() throws Exception {
+		String expected = IcatSecurity.digest(42L, "here", "secret");
+		char[] chars = new char[70];
+		IcatSecurity.digest(42, "here", "secret", chars, 3);
+		assertEquals(expected, new String(chars, 3, IcatSecurity.DIGEST_HEX_LENGTH));
+		StringBuilder sb = new StringBuilder("x");
+		IcatSecurity.digest(42, "here", "secret", sb);
+		assertEquals("x" + expected, sb.toString());
+		ByteBuffer buffer = ByteBuffer.allocate(100);
+		buffer.put((byte) 'y');
+		IcatSecurity.digest(42, "here", "secret", buffer);
+		assertEquals(65, buffer.position());
+		assertEquals(expected, new String(buffer.array(), 1, 64, StandardCharsets.US_ASCII));
+
+		String[] locations = { "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "\ud800x", "x\udc00", null };
+		long[] ids = { 0, -7, Long.MIN_VALUE, Long.MAX_VALUE };
+		for (long id : ids) {
+			for (String location : locations) {
+				byte[] hash = MessageDigest.getInstance("SHA-256")
+						.digest((id + location + "k\u00ff").getBytes(StandardCharsets.UTF_8));
+				sb.setLength(0);
+				IcatSecurity.digest(id, location, "k\u00ff", sb);
+				assertEquals(id + location, String.format("%064X", new BigInteger(1, hash)), sb.toString());
+			}
+		}
+
+		assertThrows(IndexOutOfBoundsException.class, () -> {
+			IcatSecurity.digest(1, "a", "b", new char[64], 1);
+		});
+		assertThrows(BufferOverflowException.class, () -> {
+			IcatSecurity.digest(1, "a", "b", ByteBuffer.allocate(63));
+		});
+	}
+
+	@Test
+	public final void testVerify() throws Exception {
+		String expected = IcatSecurity.digest(42L, "here", "secret");
+		assertTrue(IcatSecurity.verify(42, "here", "secret", expected));
+		assertTrue(IcatSecurity.verify(42, "here", "secret", expected.toLowerCase()));
+		assertFalse(IcatSecurity.verify(43, "here", "secret", expected));
+		assertFalse(IcatSecurity.verify(42, "here", "secret", expected.substring(1)));
+		assertFalse(IcatSecurity.verify(42, "here", "secret", expected.substring(1) + "G"));
+		assertFalse(IcatSecurity.verify(42, "here", "secret", expected.substring(0, 63) + "\u0010"));
+
+		int n = 1000;
+		long[] ids = new long[n];
+		String[] locations = new String[n];
+		String[] digests = new String[n];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			ids[i] = i;
+			locations[i] = "/data/" + i;
+			sb.setLength(0);
+			IcatSecurity.digest(i, locations[i], i % 3 == 0 ? "wrong" : "secret", sb);
+			digests[i] = sb.toString();
+		}
+		for (boolean parallel : new boolean[] { false, true }) {
+			BitSet valid = IcatSecurity.verifyAll(ids, locations, "secret", digests, parallel);
+			for (int i = 0; i < n; i++) {
+				assertEquals(i % 3 != 0, valid.get(i));
+			}
+			assertEquals(n - 334, valid.cardinality());
+		}
+	}
+
+}
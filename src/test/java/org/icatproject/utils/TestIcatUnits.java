@@ -1,11 +1,28 @@
 package org.icatproject.utils;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.measure.Unit;
+import javax.measure.UnitConverter;
+
+import org.icatproject.utils.IcatUnits.SiConverter;
 import org.icatproject.utils.IcatUnits.Value;
 import org.junit.Test;
 
+import tech.units.indriya.format.SimpleUnitFormat;
+
 public class TestIcatUnits {
 	@Test
 	public void testArguments() {
@@ -47,6 +64,73 @@ public class TestIcatUnits {
 		assertEquals(1.602176634e-19, value.numericalValue, 0.);
 	}
 
+	@Test
+	public void testAliasOptionsLayout() {
+		IcatUnits icatUnits = new IcatUnits(" K :kelvin ,  Kelvins;;J:eV\t1.602176634e-19 , erg 1e-7 ;");
+		assertEquals("Kelvin", icatUnits.convertValueToSiUnits(1., "kelvin").units);
+		assertEquals("Kelvin", icatUnits.convertValueToSiUnits(1., "Kelvins").units);
+		assertEquals(1.602176634e-19, icatUnits.convertValueToSiUnits(1., "eV").numericalValue, 0.);
+		assertEquals(2e-7, icatUnits.convertValueToSiUnits(2., "erg").numericalValue, 0.);
+
+		// Extra tokens after an alias are ignored, with no factor, as they always were
+		icatUnits = new IcatUnits("K: kelvin 1e3 extra");
+		assertEquals(2., icatUnits.convertValueToSiUnits(2., "kelvin").numericalValue, 0.);
+
+		try {
+			new IcatUnits("K kelvin");
+			fail("Missing ':' should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testWarmUp() {
+		IcatUnits icatUnits = new IcatUnits.Builder().alias("J", "eV", 1.602176634e-19).warmUp("mK", "GK", "N/A")
+				.build();
+		assertEquals(1e-3, icatUnits.convertValueToSiUnits(1., "mK").numericalValue, 0.);
+		assertNull(icatUnits.convertValueToSiUnits(1., "N/A"));
+
+		icatUnits.warmUp(Arrays.asList("kJ", "impossible to parse"));
+		assertEquals(1e3, icatUnits.convertValueToSiUnits(1., "kJ").numericalValue, 0.);
+		assertEquals(1.602176634e-19, icatUnits.convertValueToSiUnits(1., "eV").numericalValue, 0.);
+	}
+
+	@Test
+	public void testCanonicalise() {
+		IcatUnits icatUnits = new IcatUnits.Builder().canonicalise().synonym("J", "electron joules").build();
+		for (String units : new String[] { "degC", "\u00b0C", "Celsius", "DEGREES  CELSIUS", "\u2103", " deg\tC " }) {
+			Value value = icatUnits.convertValueToSiUnits(1., units);
+			assertEquals(units, "Kelvin", value.units);
+			assertEquals(units, 274.15, value.numericalValue, 1e-9);
+		}
+		assertEquals(2., icatUnits.convertValueToSiUnits(2., " kelvin ").numericalValue, 0.);
+		assertEquals(1e-3, icatUnits.convertValueToSiUnits(1., "K / 1000").numericalValue, 0.);
+		assertEquals(3., icatUnits.convertValueToSiUnits(3., "Electron Joules").numericalValue, 0.);
+
+		// Symbols are case sensitive
+		assertEquals(1e-3, icatUnits.convertValueToSiUnits(1., "mK").numericalValue, 0.);
+		assertEquals(1e6, icatUnits.convertValueToSiUnits(1., "MK").numericalValue, 0.);
+		assertNull(icatUnits.convertValueToSiUnits(1., "KELVINS PER SECOND"));
+
+		// One string per SI unit
+		assertSame(icatUnits.convertValueToSiUnits(1., "K").units, icatUnits.convertValueToSiUnits(1., "degC").units);
+		assertSame(icatUnits.convertValueToSiUnits(1., "GK").units,
+				new IcatUnits().convertValueToSiUnits(1., "nK").units);
+
+		// Only when asked for
+		assertNull(new IcatUnits().convertValueToSiUnits(1., "Celsius"));
+	}
+
+	@Test
+	public void testStandardSynonyms() {
+		IcatUnits icatUnits = new IcatUnits.Builder().canonicalise().build();
+		for (String name : IcatUnits.STANDARD_SYNONYMS.keySet()) {
+			assertNotNull(name, icatUnits.convertValueToSiUnits(1., name));
+		}
+		assertEquals(2., icatUnits.convertValueToSiUnits(2., "Ohms").numericalValue, 0.);
+	}
+
 	@Test
 	public void testNotApplicable() {
 		// N/A is used by ISIS, but technically this is the compound unit newtons per ampere
@@ -55,4 +139,150 @@ public class TestIcatUnits {
 		Value value = icatUnits.convertValueToSiUnits(1., "N/A");
 		assertNull(value);
 	}
+
+	@Test
+	public void testRepeatedConversions() {
+		IcatUnits icatUnits = new IcatUnits();
+		for (int i = 0; i < 3; i++) {
+			Value value = icatUnits.convertValueToSiUnits(i, "mK");
+			assertEquals("Kelvin", value.units);
+			assertEquals(i * 1e-3, value.numericalValue, 1e-15);
+			assertNull(icatUnits.convertValueToSiUnits(i, "impossible to parse"));
+			assertNull(icatUnits.convertValueToSiUnits(i, "N/A"));
+		}
+	}
+
+	@Test
+	public void testBuilder() throws Exception {
+		IcatUnits icatUnits = new IcatUnits.Builder().aliases("K: kelvin").alias("J", "eV", 1.602176634e-19)
+				.alias("\u2103", "celsius").cacheSize(10).build();
+		assertEquals("Kelvin", icatUnits.convertValueToSiUnits(1., "kelvin").units);
+		assertEquals(1.602176634e-19, icatUnits.convertValueToSiUnits(1., "eV").numericalValue, 0.);
+		assertEquals(274.15, icatUnits.convertValueToSiUnits(1., "celsius").numericalValue, 1e-9);
+
+		// Share one instance between threads
+		String[] units = { "kelvin", "eV", "celsius", "mK", "GK", "kg", "N/A", "impossible to parse" };
+		Thread[] threads = new Thread[8];
+		AtomicBoolean failed = new AtomicBoolean();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					String u = units[i % units.length];
+					Value value = icatUnits.convertValueToSiUnits(1., u);
+					if ((value == null) != (i % units.length >= 6)) {
+						failed.set(true);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(failed.get());
+	}
+
+	@Test
+	public void testConvertValueUnchanged() throws Exception {
+		// The values stored by icat.lucene must be exactly those Indriya gives
+		IcatUnits icatUnits = new IcatUnits();
+		for (String units : new String[] { "km", "nm", "MPa", "MHz", "kJ", "mA", "mK", "GK", "\u2103" }) {
+			Unit<?> unit = SimpleUnitFormat.getInstance().parse(units);
+			UnitConverter reference = unit.getConverterToAny(unit.getSystemUnit());
+			for (double value : new double[] { 1e-7, 1.234567, 0.1, 3.3, -42.5, 1e300 }) {
+				assertEquals(units + " " + value, reference.convert(value),
+						icatUnits.convertValueToSiUnits(value, units).numericalValue, 0.);
+			}
+		}
+	}
+
+	@Test
+	public void testConverterFor() throws Exception {
+		IcatUnits icatUnits = new IcatUnits("J: eV 1.602176634e-19");
+		Unit<?> kelvin = SimpleUnitFormat.getInstance().parse("K");
+		for (String units : new String[] { "mK", "GK", "\u00b5K", "nK", "kK" }) {
+			SiConverter converter = icatUnits.converterFor(units);
+			assertTrue(converter.isConvertible());
+			assertEquals("Kelvin", converter.getSiUnit());
+			UnitConverter reference = SimpleUnitFormat.getInstance().parse(units).getConverterToAny(kelvin);
+			for (int i = -1000; i < 1000; i++) {
+				double value = i * 1.1;
+				double expected = reference.convert(value);
+				assertEquals(units + " " + value, expected, converter.toSi(value), Math.ulp(expected));
+			}
+		}
+
+		assertEquals(0.005, icatUnits.converterFor("mK").toSi(5.), 0.);
+
+		SiConverter celsius = icatUnits.converterFor("\u2103");
+		assertEquals(274.15, celsius.toSi(1.), 0.);
+		assertEquals(0., celsius.toSi(-273.15), 1e-12);
+		assertEquals(1.602176634e-19, icatUnits.converterFor("eV").toSi(1.), 0.);
+		assertEquals(1500., icatUnits.converterFor("km").toSi(1.5), 0.);
+
+		SiConverter unknown = icatUnits.converterFor("impossible to parse");
+		assertFalse(unknown.isConvertible());
+		assertNull(unknown.getSiUnit());
+		assertTrue(Double.isNaN(unknown.toSi(1.)));
+		assertFalse(icatUnits.converterFor("N/A").isConvertible());
+	}
+
+	@Test
+	public void testUnconvertible() {
+		IcatUnits icatUnits = new IcatUnits.Builder().alias("K", "degrees kelvin").cacheSize(1)
+				.unconvertibleCacheSize(1).build();
+
+		// Rejected without parsing
+		for (String units : new String[] { "", "  ", "arbitrary units", "m s", "1 mm", "K^2 K" }) {
+			assertNull(units, icatUnits.convertValueToSiUnits(1., units));
+		}
+
+		// Whitespace which the parser accepts
+		assertEquals("Kelvin", icatUnits.convertValueToSiUnits(1., " K ").units);
+		assertEquals("Kelvin", icatUnits.convertValueToSiUnits(1., "degrees kelvin").units);
+		assertEquals(0.002, icatUnits.convertValueToSiUnits(2., "K / 1000").numericalValue, 0.);
+		assertEquals(2., icatUnits.convertValueToSiUnits(2., "mK * 1000").numericalValue, 0.);
+		assertEquals(2., icatUnits.convertValueToSiUnits(2., "K ^1").numericalValue, 0.);
+		assertEquals("Metre", icatUnits.convertValueToSiUnits(1., "( m )").units);
+
+		// Misses do not displace conversions and are remembered
+		assertEquals("Kelvin", icatUnits.convertValueToSiUnits(1., "mK").units);
+		for (int i = 0; i < 3; i++) {
+			for (String units : new String[] { "counts", "N/A", "a.u.", "mK" }) {
+				Value value = icatUnits.convertValueToSiUnits(1., units);
+				assertEquals(units, units.equals("mK"), value != null);
+			}
+		}
+	}
+
+	@Test
+	public void testBulk() {
+		IcatUnits icatUnits = new IcatUnits();
+		double[] values = new double[200000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+		}
+		double[] dest = new double[values.length];
+		assertEquals("Kelvin", icatUnits.convertValuesToSiUnits(values, dest, "\u2103", true));
+		for (int i = 0; i < values.length; i += 997) {
+			assertEquals(i + 273.15, dest[i], 1e-9);
+		}
+
+		assertEquals("Kelvin", icatUnits.convertValuesToSiUnits(values, "mK"));
+		assertEquals(0.005, values[5], 0.);
+		assertEquals(199.999, values[199999], 1e-12);
+
+		assertNull(icatUnits.convertValuesToSiUnits(values, "impossible to parse"));
+		assertEquals(0.005, values[5], 0.);
+
+		DoubleBuffer buffer = DoubleBuffer.wrap(new double[] { 1., 2., 3., 4. });
+		buffer.position(1);
+		buffer.limit(3);
+		assertEquals("Kelvin", icatUnits.convertValuesToSiUnits(buffer.slice(), "kK"));
+		assertArrayEquals(new double[] { 1., 2000., 3000., 4. }, buffer.array(), 0.);
+
+		buffer = ByteBuffer.allocateDirect(16).asDoubleBuffer().put(0, 1.).put(1, 2.);
+		assertEquals("Kelvin", icatUnits.convertValuesToSiUnits(buffer, "kK"));
+		assertEquals(2000., buffer.get(1), 0.);
+	}
 }
\ No newline at end of file
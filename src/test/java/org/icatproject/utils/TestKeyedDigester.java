@@ -0,0 +1,101 @@
+package org.icatproject.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.icatproject.utils.KeyedDigester.Algorithm;
+import org.junit.Test;
+
+public class TestKeyedDigester {
+
+	@Test
+	public void testSha256() throws Exception {
+		KeyedDigester digester = new KeyedDigester("secret");
+		assertEquals(Algorithm.SHA256, digester.getAlgorithm());
+		assertEquals(IcatSecurity.digest(42L, "here", "secret"), digester.digest(42, "here"));
+		StringBuilder sb = new StringBuilder();
+		IcatSecurity.digest(-5, "caf\u00e9", "secret", sb);
+		assertEquals(sb.toString(), digester.digest(-5, "caf\u00e9"));
+		assertTrue(digester.verify(-5, "caf\u00e9", sb.toString().toLowerCase()));
+		assertFalse(digester.verify(-5, "cafe", sb.toString()));
+	}
+
+	@Test
+	public void testHmac() throws Exception {
+		KeyedDigester digester = new KeyedDigester("secret", Algorithm.HMAC_SHA256);
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec("secret".getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		for (long id : new long[] { 0, 42, -1, Long.MIN_VALUE }) {
+			for (String location : new String[] { "here", "", "\u4e2d\ud83d\ude00" }) {
+				byte[] location8 = location.getBytes(StandardCharsets.UTF_8);
+				byte[] message = ByteBuffer.allocate(8 + location8.length).putLong(id).put(location8).array();
+				String expected = String.format("%064X", new BigInteger(1, mac.doFinal(message)));
+				assertEquals(expected, digester.digest(id, location));
+				assertTrue(digester.verify(id, location, expected));
+			}
+		}
+		assertFalse(digester.digest(1, "23").equals(digester.digest(12, "3")));
+		assertFalse(digester.digest(42, "here").equals(new KeyedDigester("secret").digest(42, "here")));
+	}
+
+	@Test
+	public void testVerifyAll() throws Exception {
+		for (Algorithm algorithm : Algorithm.values()) {
+			KeyedDigester digester = new KeyedDigester("secret", algorithm);
+			KeyedDigester wrong = new KeyedDigester("wrong", algorithm);
+			int n = 500;
+			long[] ids = new long[n];
+			String[] locations = new String[n];
+			String[] digests = new String[n];
+			for (int i = 0; i < n; i++) {
+				ids[i] = i;
+				locations[i] = "/data/" + i;
+				digests[i] = (i % 5 == 0 ? wrong : digester).digest(i, locations[i]);
+			}
+			BitSet valid = digester.verifyAll(ids, locations, digests, true);
+			assertEquals(n - 100, valid.cardinality());
+			assertFalse(valid.get(0));
+			assertTrue(valid.get(499));
+		}
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		KeyedDigester digester = new KeyedDigester("secret", Algorithm.HMAC_SHA256);
+		String expected = digester.digest(1, "a");
+		assertEquals(0, digester.getCacheMisses());
+
+		digester.setCacheSize(2);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expected, digester.digest(1, "a"));
+			assertTrue(digester.verify(1, "a", expected));
+		}
+		assertEquals(1, digester.getCacheMisses());
+		assertEquals(5, digester.getCacheHits());
+
+		// A changed location is a different entry, and invalidation drops the old one
+		assertFalse(digester.verify(1, "b", expected));
+		digester.invalidate(1);
+		assertEquals(expected, digester.digest(1, "a"));
+		assertEquals(3, digester.getCacheMisses());
+		digester.invalidateAll();
+		StringBuilder sb = new StringBuilder();
+		digester.digest(1, "a", sb);
+		assertEquals(expected, sb.toString());
+		assertEquals(4, digester.getCacheMisses());
+
+		digester.setCacheSize(0);
+		assertEquals(expected, digester.digest(1, "a"));
+		assertEquals(0, digester.getCacheHits() + digester.getCacheMisses());
+	}
+
+}
@@ -1,17 +1,34 @@
 package org.icatproject.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class TestShellCommand {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void testDate() throws Exception {
 		ShellCommand sc = new ShellCommand("date");
@@ -114,4 +131,193 @@ public class TestShellCommand {
 		assertEquals("exitCode", 1, exitCode);
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testAsync() throws Exception {
+		List<CompletableFuture<ShellCommand>> futures = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			futures.add(ShellCommand.runAsync("sh", "-c", "sleep 1; echo " + i));
+		}
+		for (int i = 0; i < 50; i++) {
+			ShellCommand sc = futures.get(i).get(30, TimeUnit.SECONDS);
+			assertEquals("stdout", i + "\n", sc.getStdout());
+			assertEquals("exitCode", 0, sc.getExitValue());
+		}
+
+		ByteArrayInputStream bais = new ByteArrayInputStream("date\nsleep 1\ndate".getBytes());
+		ShellCommand sc = ShellCommand.runAsync(null, bais, "cat").get();
+		assertEquals("stdout", "date\nsleep 1\ndate", sc.getStdout());
+
+		sc = ShellCommand.runAsync(Arrays.asList("wibble", "12")).get();
+		assertEquals("exitCode", 1, sc.getExitValue());
+		assertTrue("stderr", sc.getStderr().startsWith("Cannot run program \"wibble\": error=2,"));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		long start = System.nanoTime();
+		ShellCommand sc = new ShellCommand.Builder("sh", "-c", "echo partial; sleep 30").timeout(1, TimeUnit.SECONDS)
+				.run();
+		assertTrue("elapsed", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(20));
+		assertTrue("timedOut", sc.isTimedOut());
+		assertTrue("error", sc.isError());
+		assertEquals("stdout", "partial\n", sc.getStdout());
+		assertTrue("message", sc.getMessage().startsWith("timed out"));
+		assertTrue("killed", sc.getExitValue() != ShellCommand.STILL_RUNNING);
+
+		sc = new ShellCommand.Builder("echo", "quick").timeout(30, TimeUnit.SECONDS).run();
+		assertFalse("timedOut", sc.isTimedOut());
+		assertEquals("stdout", "quick\n", sc.getStdout());
+
+		// A descendant which escapes being killed and holds stdout open does not stop the result
+		for (String script : new String[] { "sleep 60 & sleep 60", "echo partial; (sleep 60 &); sleep 60" }) {
+			start = System.nanoTime();
+			sc = new ShellCommand.Builder("sh", "-c", script).timeout(1, TimeUnit.SECONDS).runAsync().get(20,
+					TimeUnit.SECONDS);
+			assertTrue("elapsed", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(20));
+			assertTrue("timedOut", sc.isTimedOut());
+		}
+		assertEquals("stdout", "partial\n", sc.getStdout());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		Path marker = folder.getRoot().toPath().resolve("marker");
+		CompletableFuture<ShellCommand> future = new ShellCommand.Builder("sh", "-c", "sleep 2; touch " + marker)
+				.runAsync();
+		Thread.sleep(200);
+		assertTrue(future.cancel(true));
+		Thread.sleep(3000);
+		assertFalse("marker", Files.exists(marker));
+	}
+
+	@Test
+	public void testConsumers() throws Exception {
+		List<String> lines = Collections.synchronizedList(new ArrayList<>());
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		ShellCommand sc = new ShellCommand.Builder("sh", "-c", "seq 1 100000; echo oops >&2; exit 3").stdout(lines::add)
+				.stderr(Channels.newChannel(errors)).run();
+		assertEquals("exitCode", 3, sc.getExitValue());
+		assertEquals("stdout", "", sc.getStdout());
+		assertEquals("stderr", "", sc.getStderr());
+		assertEquals(100000, lines.size());
+		assertEquals("1", lines.get(0));
+		assertEquals("100000", lines.get(99999));
+		assertEquals("oops\n", errors.toString());
+
+		// A failing consumer does not leave the command blocked
+		sc = new ShellCommand.Builder("seq", "1", "1000000").stdout(line -> {
+			throw new IllegalStateException("full");
+		}).timeout(30, TimeUnit.SECONDS).run();
+		assertFalse("timedOut", sc.isTimedOut());
+		assertEquals("exitCode", 1, sc.getExitValue());
+		assertTrue("stderr", sc.getStderr().contains("full"));
+	}
+
+	@Test
+	public void testCaptureLimit() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= 100000; i++) {
+			sb.append(i).append('\n');
+		}
+		String expected = sb.toString();
+
+		ShellCommand sc = new ShellCommand.Builder("seq", "1", "100000").captureLimit(1000).run();
+		String stdout = sc.getStdout();
+		assertEquals("exitCode", 0, sc.getExitValue());
+		assertTrue(stdout.startsWith(expected.substring(0, 500)));
+		assertTrue(stdout.endsWith(expected.substring(expected.length() - 500)));
+		assertTrue(stdout.contains("[" + (expected.length() - 1000) + " bytes omitted]"));
+		assertEquals(null, sc.getStdoutFile());
+
+		sc = new ShellCommand.Builder("seq", "1", "100000").captureLimit(1000, folder.getRoot().toPath()).run();
+		stdout = sc.getStdout();
+		Path file = sc.getStdoutFile();
+		assertEquals("exitCode", 0, sc.getExitValue());
+		assertEquals(expected, new String(Files.readAllBytes(file)));
+		assertTrue(stdout.endsWith("[complete output in " + file + "] ...\n"));
+		assertTrue(expected.startsWith(stdout.substring(0, stdout.indexOf("\n... ["))));
+		assertEquals(null, sc.getStderrFile());
+
+		// The file is not left behind if the command fails
+		Path spill = folder.newFolder().toPath();
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("input failed");
+			}
+		};
+		sc = new ShellCommand.Builder("sh", "-c", "seq 1 100000; cat >/dev/null").input(failing)
+				.captureLimit(1000, spill).run();
+		assertEquals("exitCode", 1, sc.getExitValue());
+		assertEquals("stderr", "input failed", sc.getStderr());
+		assertEquals(null, sc.getStdoutFile());
+		try (Stream<Path> files = Files.list(spill)) {
+			assertEquals(0, files.count());
+		}
+
+		// Nor if the command is cancelled
+		spill = folder.newFolder().toPath();
+		CompletableFuture<ShellCommand> future = new ShellCommand.Builder("sh", "-c", "seq 1 100000; sleep 30")
+				.captureLimit(1000, spill).runAsync();
+		for (int i = 0; i < 100 && isEmpty(spill); i++) {
+			Thread.sleep(50);
+		}
+		assertFalse("spilled", isEmpty(spill));
+		assertTrue(future.cancel(true));
+		assertTrue("deleted", isEmpty(spill));
+
+		// Output within the limit is unchanged
+		for (Path dir : new Path[] { null, folder.getRoot().toPath() }) {
+			sc = new ShellCommand.Builder("seq", "1", "3").captureLimit(6, dir).run();
+			assertEquals("1\n2\n3\n", sc.getStdout());
+			assertEquals(null, sc.getStdoutFile());
+		}
+	}
+
+	private static boolean isEmpty(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return !files.findAny().isPresent();
+		}
+	}
+
+	@Test
+	public void testPipeline() throws Exception {
+		Path input = folder.getRoot().toPath().resolve("in.txt");
+		List<String> lines = new ArrayList<>();
+		int sevens = 0;
+		for (int i = 1; i <= 100000; i++) {
+			lines.add(Integer.toString(i));
+			if (lines.get(i - 1).contains("7")) {
+				sevens++;
+			}
+		}
+		Files.write(input, lines);
+
+		ShellCommand sc = new ShellCommand.Builder("cat").input(input).pipe("grep", "7").pipe("wc", "-l").run();
+		assertEquals("exitCode", 0, sc.getExitValue());
+		assertEquals("stdout", Integer.toString(sevens), sc.getStdout().trim());
+		assertEquals("stderr", "", sc.getStderr());
+
+		// The exit value is that of the last command and stderr comes from all of them
+		sc = new ShellCommand.Builder("sh", "-c", "echo one >&2; seq 3")
+				.pipe("sh", "-c", "cat >/dev/null; echo two >&2; exit 4").run();
+		assertEquals("exitCode", 4, sc.getExitValue());
+		assertEquals("stdout", "", sc.getStdout());
+		assertEquals("stderr", "one\ntwo\n", sc.getStderr());
+
+		// Large input from a file or a stream passes through the pipeline
+		byte[] bytes = new byte[10_000_000];
+		Files.write(input, bytes);
+		sc = new ShellCommand.Builder("cat").input(input).pipe("cat").run();
+		assertEquals("exitCode", 0, sc.getExitValue());
+		assertEquals("stdout", bytes.length, sc.getStdout().length());
+		sc = new ShellCommand.Builder("cat").input(new ByteArrayInputStream(bytes)).pipe("wc", "-c").run();
+		assertEquals("exitCode", 0, sc.getExitValue());
+		assertEquals("stdout", Integer.toString(bytes.length), sc.getStdout().trim());
+
+		sc = new ShellCommand.Builder("no_such_command").pipe("cat").run();
+		assertEquals("exitCode", 1, sc.getExitValue());
+		assertTrue("stderr", sc.getStderr().contains("no_such_command"));
+	}
+
+}
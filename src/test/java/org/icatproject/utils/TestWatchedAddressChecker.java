@@ -0,0 +1,112 @@
+package org.icatproject.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestWatchedAddressChecker {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReloadOnChange() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("run.properties");
+		Files.write(file, Arrays.asList("ip = 192.168.3.0/24", "other = x"));
+
+		try (WatchedAddressChecker a = new WatchedAddressChecker(file, "ip")) {
+			assertTrue(a.check("192.168.3.1"));
+			assertFalse(a.check("10.0.0.1"));
+
+			Files.write(file, Arrays.asList("ip = 10.0.0.0/8", "other = x"));
+			for (int i = 0; i < 100 && !a.check("10.0.0.1"); i++) {
+				Thread.sleep(100);
+			}
+			assertTrue(a.check("10.0.0.1"));
+			assertFalse(a.check("192.168.3.1"));
+
+			// A bad edit leaves the previous patterns in force
+			Files.write(file, Arrays.asList("ip = 10.0.0.0/99"));
+			assertThrows(AddressCheckerException.class, () -> {
+				a.reload();
+			});
+			assertTrue(a.check("10.0.0.1"));
+		}
+	}
+
+	@Test
+	public void testPartialWrite() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("run.properties");
+		Files.write(file, Arrays.asList("ip = 192.168.3.0/24"));
+
+		try (WatchedAddressChecker a = new WatchedAddressChecker(file, "ip")) {
+			// A pause part way through writing must not publish the rules written so far
+			try (OutputStream os = Files.newOutputStream(file)) {
+				os.write("ip = 10.0.0.0/8".getBytes(StandardCharsets.ISO_8859_1));
+				os.flush();
+				Thread.sleep(100);
+				os.write(" !10.6.0.0/16\n".getBytes(StandardCharsets.ISO_8859_1));
+			}
+			for (int i = 0; i < 500 && !a.check("10.0.0.1"); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(a.check("10.0.0.1"));
+			assertFalse(a.check("10.6.0.1"));
+		}
+	}
+
+	@Test
+	public void testBusyDirectory() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("run.properties");
+		Path log = folder.getRoot().toPath().resolve("server.log");
+		Files.write(file, Arrays.asList("ip = 192.168.3.0/24"));
+
+		try (WatchedAddressChecker a = new WatchedAddressChecker(file, "ip")) {
+			// Another file changing more often than the settling time does not hold up reloading
+			AtomicBoolean stop = new AtomicBoolean();
+			Thread writer = new Thread(() -> {
+				try {
+					while (!stop.get()) {
+						Files.write(log, Arrays.asList("line"), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+						Thread.sleep(100);
+					}
+				} catch (Exception e) {
+					// Stop writing
+				}
+			});
+			writer.start();
+			try {
+				Files.write(file, Arrays.asList("ip = 10.0.0.0/8"));
+				for (int i = 0; i < 100 && !a.check("10.0.0.1"); i++) {
+					Thread.sleep(100);
+				}
+				assertTrue(a.check("10.0.0.1"));
+			} finally {
+				stop.set(true);
+				writer.join();
+			}
+		}
+	}
+
+	@Test
+	public void testMissingProperty() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("run.properties");
+		Files.write(file, Arrays.asList("other = x"));
+		assertThrows(AddressCheckerException.class, () -> {
+			new WatchedAddressChecker(file, "ip");
+		});
+	}
+
+}